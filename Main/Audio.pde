@@ -67,6 +67,14 @@ public static class Audio {
     // Le aplicamos el valor de ganancia establecido
     backgroundMusicPlayer.setGain(globalVolume);
   }
+  // Detiene la música de fondo sin perder la posición
+  static void pause() {
+    if (backgroundMusicPlayer != null) backgroundMusicPlayer.pause();
+  }
+  // Reanuda la música de fondo donde se detuvo
+  static void resume() {
+    if (backgroundMusicPlayer != null) backgroundMusicPlayer.loop();
+  }
   // Reproduce una vez un sample de audio
   static void playSample(String id) {
     samples.get(id).trigger();
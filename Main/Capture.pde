@@ -0,0 +1,141 @@
+//
+// CAPTURA DE VÍDEO
+//
+// Mientras se juega, cada fotograma terminado de la etapa en curso se copia,
+// reducido, en un anillo de fotogramas reservado al arrancar. El anillo guarda
+// siempre los últimos segundos de juego. Al pulsar la tecla C se entregan esos
+// fotogramas a un hilo codificador que los escribe como una secuencia de PNG en
+// una carpeta nueva dentro de captures/.
+//
+// El hilo de animación nunca espera al codificador. Los fotogramas que se están
+// guardando no se pueden sobrescribir; si el anillo vuelve a llegar a ellos antes
+// de que el codificador los haya escrito, el fotograma nuevo se descarta y se
+// cuenta como perdido.
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import javax.imageio.ImageIO;
+
+/*
+  Anillo de fotogramas y codificador en segundo plano
+ */
+class FrameCapture implements Runnable {
+  // Estados de una posición del anillo
+  final static int FREE = 0;
+  final static int PENDING = 1;
+
+  // Tamaño de los fotogramas guardados
+  int width, height;
+  // Pixeles de cada fotograma, reservados al crear la captura
+  int[][] frames;
+  // Estado de cada posición. El codificador libera las posiciones desde su hilo
+  AtomicIntegerArray states;
+  // Posición del próximo fotograma
+  int head;
+  // Fotogramas guardados en el anillo
+  int size;
+  // Tiempo mínimo entre dos fotogramas capturados
+  long intervalNanos;
+  long lastCapture;
+  // Fotogramas descartados porque el codificador no había liberado su posición
+  int dropped;
+  // Columna de la superficie de la que sale cada columna del fotograma, para el ancho 'sourceWidth'
+  int[] columns;
+  int sourceWidth;
+
+  // Fotogramas que debe escribir el codificador: 'pendingCount' desde 'pendingFirst', en 'pendingDir'
+  int pendingFirst, pendingCount;
+  Path pendingDir;
+  // Hay una captura guardándose
+  volatile boolean saving;
+  Semaphore requested = new Semaphore(0);
+  Thread thread;
+
+  // Guarda 'seconds' segundos a 'fps' fotogramas por segundo, de tamaño width x height
+  FrameCapture(int width, int height, int fps, int seconds) {
+    this.width = width;
+    this.height = height;
+    int capacity = max(1, fps * seconds);
+    frames = new int[capacity][width * height];
+    states = new AtomicIntegerArray(capacity);
+    intervalNanos = 1000000000L / max(1, fps);
+    lastCapture = System.nanoTime() - intervalNanos;
+    columns = new int[width];
+
+    thread = new Thread(this, "FrameCapture");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  // Copia la superficie en el anillo si ha pasado el intervalo de captura. Se invoca desde el hilo de animación
+  void offer(PGraphics surface) {
+    long now = System.nanoTime();
+    if (now - lastCapture < intervalNanos) return;
+    lastCapture = now;
+    if (states.get(head) != FREE) {
+      dropped++;
+      return;
+    }
+    int[] src = getSurfacePixels(surface);
+    if (src == null) {
+      surface.loadPixels();
+      src = surface.pixels;
+    }
+    if (sourceWidth != surface.width) {
+      sourceWidth = surface.width;
+      for (int x=0; x<width; x++) columns[x] = x * sourceWidth / width;
+    }
+    // Reducimos tomando un pixel de cada bloque
+    int[] dst = frames[head];
+    int i = 0;
+    for (int y=0; y<height; y++) {
+      int row = (y * surface.height / height) * sourceWidth;
+      for (int x=0; x<width; x++) dst[i++] = src[row + columns[x]];
+    }
+    head = (head + 1) % frames.length;
+    size = min(size + 1, frames.length);
+  }
+
+  // Entrega los fotogramas del anillo al codificador para que los escriba en 'dir'.
+  // Devuelve false si no hay nada que guardar o aún se está guardando la anterior
+  boolean save(Path dir) {
+    if (saving || size == 0) return false;
+    pendingFirst = (head - size + frames.length) % frames.length;
+    pendingCount = size;
+    pendingDir = dir;
+    for (int i=0; i<size; i++) states.set((pendingFirst + i) % frames.length, PENDING);
+    // Los fotogramas entregados dejan el anillo, la siguiente captura empieza de cero
+    size = 0;
+    saving = true;
+    requested.release();
+    return true;
+  }
+
+  // Hilo codificador: escribe los fotogramas entregados, del más antiguo al más reciente,
+  // y libera cada posición en cuanto la ha escrito
+  public void run() {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    while (true) {
+      requested.acquireUninterruptibly();
+      int written = 0;
+      try {
+        Files.createDirectories(pendingDir);
+        for (; written<pendingCount; written++) {
+          int slot = (pendingFirst + written) % frames.length;
+          image.setRGB(0, 0, width, height, frames[slot], 0, width);
+          ImageIO.write(image, "png", pendingDir.resolve("frame-" + nf(written, 5) + ".png").toFile());
+          states.set(slot, FREE);
+        }
+      }
+      catch (IOException e) {
+        println("capture: " + e.getMessage());
+      }
+      finally {
+        // Si algo ha fallado, liberamos también las posiciones que no se han llegado a escribir
+        for (int i=written; i<pendingCount; i++) states.set((pendingFirst + i) % frames.length, FREE);
+        // Avisamos antes de liberar el hilo: en cuanto saving es false, save() puede cambiar pendingDir
+        println("capture: " + written + " frames saved to " + pendingDir);
+        saving = false;
+      }
+    }
+  }
+}
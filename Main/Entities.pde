@@ -0,0 +1,460 @@
+//
+// ENTIDADES DEL ESCENARIO
+//
+// Los items y enemigos que aparecen sobre el camino de cerillas no son objetos
+// independientes, sino filas de un almacén de componentes organizado como
+// estructura de arrays (SoA). Cada componente (posición, velocidad, inicio de la
+// animación, colisión, valor, daño) vive en su propio array de primitivos, y los
+// sistemas (movimiento, colisión y pintado) los recorren de forma lineal. Las
+// animaciones no necesitan sistema propio: el fotograma se calcula al pintar a
+// partir del reloj de la etapa.
+// Añadir un nuevo tipo de entidad consiste en registrar un EntityKind, sin
+// necesidad de escribir nuevos bucles de actualización o dibujado.
+
+/*
+  Esta clase describe un tipo de entidad. Los valores de aquí se copian
+  a los componentes de cada entidad en el momento de crearla.
+ */
+class EntityKind {
+  // La entidad no otorga nada al recogerla
+  public final static int PICKUP_NONE = 0;
+  // La entidad otorga puntos al marcador
+  public final static int PICKUP_SCORE = 1;
+  // La entidad otorga puntos de vida
+  public final static int PICKUP_LIFE = 2;
+  // La entidad otorga puntos de vuelo
+  public final static int PICKUP_POWER = 3;
+
+  // Identificador del tipo, coincide con su posición en la tabla de tipos
+  int id;
+  // Animación (compartida) con los fotogramas del tipo
+  Animation animation;
+  // Efecto que produce al ser recogida
+  int pickup;
+  // Valor que otorga al ser recogida
+  int value;
+  // Daño que inflinge al pavo al colisionar con ella
+  int damage;
+  // Desplazamiento horizontal con el que se pinta el sprite
+  int drawOffsetX;
+  // Altura sobre la cerilla a la que aparece la entidad
+  int spawnOffsetY;
+  // Peso relativo a la hora de elegir aleatoriamente entre tipos del mismo grupo
+  float weight;
+  // Sample que se reproduce al colisionar, puede ser null
+  String sample;
+
+  // Constructor
+  EntityKind(int id, Animation animation, int pickup, int value, int damage, int drawOffsetX, int spawnOffsetY, float weight, String sample) {
+    this.id = id;
+    this.animation = animation;
+    this.pickup = pickup;
+    this.value = value;
+    this.damage = damage;
+    this.drawOffsetX = drawOffsetX;
+    this.spawnOffsetY = spawnOffsetY;
+    this.weight = weight;
+    this.sample = sample;
+  }
+}
+
+/*
+  Almacén de componentes de todas las entidades. Las entidades se mantienen
+  ordenadas por columna (la cerilla sobre la que nacieron), lo que permite
+  pintarlas intercaladas con las cerillas sin tener que buscarlas.
+ */
+class EntityStore {
+  // La entidad ha sido recogida y ya no se desplaza con el terreno
+  public final static int FLAG_DETACHED = 1;
+  // La entidad debe eliminarse en la próxima compactación
+  public final static int FLAG_REMOVED = 2;
+
+  // Número de entidades vivas
+  int count;
+  // Tabla de tipos, indexada por el componente kind
+  EntityKind[] kinds;
+
+  // Tipo de la entidad
+  int[] kind;
+  // Columna (cerilla) a la que pertenece la entidad
+  long[] column;
+  // Posición
+  int[] posX, posY;
+  // Posición en la comprobación de colisiones anterior
+  int[] prevX, prevY;
+  // Velocidad propia, adicional al desplazamiento del terreno
+  int[] velX, velY;
+  // Instante de aparición en el reloj de la etapa, origen de su animación
+  long[] animationStart;
+  // Caja de colisión
+  int[] colW, colH;
+  // Efecto y valor al recogerla
+  int[] pickup, value;
+  // Daño al colisionar
+  int[] damage;
+  // Altura de referencia para el desvanecimiento tras ser recogida
+  int[] anchorY;
+  // Flags de estado (FLAG_*)
+  int[] flags;
+
+  // Constructor, reserva espacio para 'capacity' entidades
+  EntityStore(EntityKind[] kinds, int capacity) {
+    this.kinds = kinds;
+    this.count = 0;
+    allocate(capacity);
+  }
+
+  // Reserva (o amplía) los arrays de componentes conservando su contenido
+  private void allocate(int capacity) {
+    kind = grow(kind, capacity);
+    column = grow(column, capacity);
+    posX = grow(posX, capacity);
+    posY = grow(posY, capacity);
+    prevX = grow(prevX, capacity);
+    prevY = grow(prevY, capacity);
+    velX = grow(velX, capacity);
+    velY = grow(velY, capacity);
+    animationStart = grow(animationStart, capacity);
+    colW = grow(colW, capacity);
+    colH = grow(colH, capacity);
+    pickup = grow(pickup, capacity);
+    value = grow(value, capacity);
+    damage = grow(damage, capacity);
+    anchorY = grow(anchorY, capacity);
+    flags = grow(flags, capacity);
+  }
+
+  private int[] grow(int[] src, int capacity) {
+    int[] dst = new int[capacity];
+    if (src != null) System.arraycopy(src, 0, dst, 0, count);
+    return dst;
+  }
+
+  private long[] grow(long[] src, int capacity) {
+    long[] dst = new long[capacity];
+    if (src != null) System.arraycopy(src, 0, dst, 0, count);
+    return dst;
+  }
+
+  // Crea una entidad del tipo indicado en el instante 'time' y devuelve su índice
+  int spawn(int kindId, long col, int x, int y, long time) {
+    if (count == kind.length) allocate(kind.length * 2);
+    EntityKind k = kinds[kindId];
+    PImage image = k.animation.frames[0];
+    int e = count++;
+    kind[e] = kindId;
+    column[e] = col;
+    posX[e] = x;
+    posY[e] = y + k.spawnOffsetY;
+    prevX[e] = posX[e];
+    prevY[e] = posY[e];
+    velX[e] = 0;
+    velY[e] = 0;
+    animationStart[e] = time;
+    colW[e] = image.width;
+    colH[e] = image.height;
+    pickup[e] = k.pickup;
+    value[e] = k.value;
+    damage[e] = k.damage;
+    anchorY[e] = 0;
+    flags[e] = 0;
+    return e;
+  }
+
+  // Elimina las entidades marcadas con FLAG_REMOVED manteniendo el orden del resto
+  void compact() {
+    int w = 0;
+    for (int r=0; r<count; r++) {
+      if ((flags[r] & FLAG_REMOVED) != 0) continue;
+      if (w != r) {
+        kind[w] = kind[r];
+        column[w] = column[r];
+        posX[w] = posX[r];
+        posY[w] = posY[r];
+        prevX[w] = prevX[r];
+        prevY[w] = prevY[r];
+        velX[w] = velX[r];
+        velY[w] = velY[r];
+        animationStart[w] = animationStart[r];
+        colW[w] = colW[r];
+        colH[w] = colH[r];
+        pickup[w] = pickup[r];
+        value[w] = value[r];
+        damage[w] = damage[r];
+        anchorY[w] = anchorY[r];
+        flags[w] = flags[r];
+      }
+      w++;
+    }
+    count = w;
+  }
+
+  // Escribe todas las entidades en una instantánea
+  void saveState(StateBuffer out) {
+    out.putInt(count);
+    out.putInts(kind, count);
+    out.putLongs(column, count);
+    out.putInts(posX, count);
+    out.putInts(posY, count);
+    out.putInts(prevX, count);
+    out.putInts(prevY, count);
+    out.putInts(velX, count);
+    out.putInts(velY, count);
+    out.putLongs(animationStart, count);
+    out.putInts(colW, count);
+    out.putInts(colH, count);
+    out.putInts(pickup, count);
+    out.putInts(value, count);
+    out.putInts(damage, count);
+    out.putInts(anchorY, count);
+    out.putInts(flags, count);
+  }
+
+  // Restaura las entidades de una instantánea escrita con saveState()
+  void loadState(StateBuffer in) {
+    int n = in.getInt();
+    if (n > kind.length) allocate(n);
+    count = n;
+    in.getInts(kind, count);
+    in.getLongs(column, count);
+    in.getInts(posX, count);
+    in.getInts(posY, count);
+    in.getInts(prevX, count);
+    in.getInts(prevY, count);
+    in.getInts(velX, count);
+    in.getInts(velY, count);
+    in.getLongs(animationStart, count);
+    in.getInts(colW, count);
+    in.getInts(colH, count);
+    in.getInts(pickup, count);
+    in.getInts(value, count);
+    in.getInts(damage, count);
+    in.getInts(anchorY, count);
+    in.getInts(flags, count);
+  }
+
+  // La entidad ha sido recogida: se separa del terreno y asciende hasta desaparecer
+  void detach(int e) {
+    flags[e] |= FLAG_DETACHED;
+    anchorY[e] = posY[e] - 50;
+    posY[e] = anchorY[e] - 10;
+    velY[e] = -10;
+  }
+
+  // Elimina todas las entidades
+  void clear() {
+    count = 0;
+  }
+}
+
+/*
+  Sistema de movimiento: desplaza las entidades con el terreno y aplica su
+  velocidad propia. Marca para eliminar las que han salido de la pantalla.
+ */
+class MovementSystem {
+  void update(EntityStore s, float terrainSpeed, long firstColumn) {
+    move(s, terrainSpeed, firstColumn, 0, s.count);
+    s.compact();
+  }
+
+  // Desplaza las entidades [from, to). Cada entidad solo modifica sus propios componentes,
+  // así que rangos distintos se pueden mover a la vez; la compactación queda para el llamante
+  void move(EntityStore s, float terrainSpeed, long firstColumn, int from, int to) {
+    for (int e=from; e<to; e++) {
+      // Quitamos las entidades cuya cerilla ya no existe o que han salido por la izquierda
+      if (s.column[e] < firstColumn || s.posX[e] < 0) {
+        s.flags[e] |= EntityStore.FLAG_REMOVED;
+        continue;
+      }
+      s.prevX[e] = s.posX[e];
+      s.prevY[e] = s.posY[e];
+      if ((s.flags[e] & EntityStore.FLAG_DETACHED) == 0) {
+        s.posX[e] -= terrainSpeed;
+      }
+      s.posX[e] += s.velX[e];
+      s.posY[e] += s.velY[e];
+
+      // Las entidades recogidas desaparecen al llegar a la parte superior
+      if ((s.flags[e] & EntityStore.FLAG_DETACHED) != 0 && s.posY[e] <= 0) {
+        s.flags[e] |= EntityStore.FLAG_REMOVED;
+      }
+    }
+  }
+}
+
+/*
+  Receptor de las colisiones detectadas por CollisionSystem
+ */
+interface CollisionListener {
+  // Se invoca cuando la entidad 'e' toca al pavo. Devuelve true si la entidad
+  // ha sido consumida (recogida) y debe desvanecerse
+  boolean onEntityCollision(EntityStore s, int e);
+}
+
+/*
+  Máscara de colisión de una imagen: un bit por pixel, activo si el pixel es
+  suficientemente opaco. Cada fila se empaqueta en 'words' enteros de 64 bits,
+  con el pixel x en el bit (x % 64) de la palabra x / 64, de manera que el
+  solapamiento de dos máscaras se comprueba con desplazamientos y AND de 64
+  pixeles cada vez.
+ */
+class CollisionMask {
+  // Opacidad mínima de un pixel para que cuente en la colisión
+  public final static int ALPHA_THRESHOLD = 128;
+
+  // Tamaño en pixeles
+  int width, height;
+  // Palabras de 64 bits por fila
+  int words;
+  // Bits de todas las filas, consecutivas
+  long[] bits;
+
+  // Construye la máscara a partir del canal alfa de una imagen
+  CollisionMask(PImage image) {
+    this(image.width, image.height);
+    image.loadPixels();
+    for (int y=0; y<height; y++) {
+      for (int x=0; x<width; x++) {
+        if ((image.pixels[y*width + x] >>> 24) >= ALPHA_THRESHOLD) {
+          bits[y*words + (x >> 6)] |= 1L << (x & 63);
+        }
+      }
+    }
+  }
+
+  // Construye una máscara rectangular completamente opaca
+  CollisionMask(int width, int height, boolean solid) {
+    this(width, height);
+    if (!solid) return;
+    for (int y=0; y<height; y++) {
+      for (int x=0; x<width; x++) {
+        bits[y*words + (x >> 6)] |= 1L << (x & 63);
+      }
+    }
+  }
+
+  private CollisionMask(int width, int height) {
+    this.width = width;
+    this.height = height;
+    this.words = (width + 63) >> 6;
+    this.bits = new long[words * height];
+  }
+
+  // Determina si algún pixel de esta máscara coincide con alguno de 'other'
+  // cuando 'other' se coloca en (ox, oy) respecto a esta
+  boolean overlaps(CollisionMask other, int ox, int oy) {
+    // Solo recorremos el rectángulo común a ambas
+    int x0 = max(0, ox), x1 = min(width, ox + other.width);
+    int y0 = max(0, oy), y1 = min(height, oy + other.height);
+    if (x0 >= x1 || y0 >= y1) return false;
+    int w0 = x0 >> 6, w1 = (x1 - 1) >> 6;
+    for (int y=y0; y<y1; y++) {
+      int row = y * words;
+      int otherRow = (y - oy) * other.words;
+      for (int w=w0; w<=w1; w++) {
+        long mine = bits[row + w];
+        if (mine != 0 && (mine & other.extract(otherRow, (w << 6) - ox)) != 0) return true;
+      }
+    }
+    return false;
+  }
+
+  // Devuelve los 64 bits de la fila que empieza en 'row' a partir del pixel 'start',
+  // que puede quedar fuera de la máscara. Los pixeles fuera de la máscara valen 0
+  private long extract(int row, int start) {
+    int w = start >> 6;
+    int shift = start & 63;
+    long value = word(row, w) >>> shift;
+    if (shift != 0) value |= word(row, w + 1) << (64 - shift);
+    return value;
+  }
+
+  private long word(int row, int w) {
+    return (w < 0 || w >= words) ? 0 : bits[row + w];
+  }
+}
+
+// Distancia máxima, en pixeles, entre dos posiciones consecutivas en las que se comparan las máscaras
+final static int MASK_SWEEP_STEP = 4;
+
+/*
+ * Colisión continua y exacta entre dos máscaras que se han desplazado desde la
+ * comprobación anterior, con los mismos parámetros que sweptCollision(). Primero
+ * se descarta con el barrido de las cajas y, solo si este detecta contacto, se
+ * recorre el desplazamiento relativo comparando las máscaras cada MASK_SWEEP_STEP
+ * pixeles.
+ */
+boolean sweptMaskCollision(CollisionMask a, int ax0, int ay0, int ax1, int ay1,
+                           CollisionMask b, int bx0, int by0, int bx1, int by1) {
+  if (!sweptCollision(ax0, ay0, ax1, ay1, a.width, a.height, bx0, by0, bx1, by1, b.width, b.height)) return false;
+  // Posiciones de A relativas a B al principio y al final del recorrido
+  int rx0 = ax0 - bx0, ry0 = ay0 - by0;
+  int rx1 = ax1 - bx1, ry1 = ay1 - by1;
+  int steps = max(1, (max(abs(rx1 - rx0), abs(ry1 - ry0)) + MASK_SWEEP_STEP - 1) / MASK_SWEEP_STEP);
+  for (int i=0; i<=steps; i++) {
+    if (b.overlaps(a, rx0 + (rx1 - rx0) * i / steps, ry0 + (ry1 - ry0) * i / steps)) return true;
+  }
+  return false;
+}
+
+/*
+  Sistema de colisión: comprueba cada entidad contra el pavo pixel a pixel, con
+  las máscaras del fotograma que se está mostrando. La comprobación es continua:
+  se barre el recorrido de cada entidad y del pavo desde la comprobación anterior,
+  así que a cualquier velocidad del terreno las entidades no pueden atravesar al
+  pavo entre dos fotogramas
+ */
+class CollisionSystem {
+  // El pavo, con la máscara 'mask', se pintaba en (fromX, fromY) en la comprobación
+  // anterior y ahora en (x, y). 'time' es el instante actual del reloj de la etapa
+  void update(EntityStore s, CollisionMask mask, int fromX, int fromY, int x, int y, long time, CollisionListener listener) {
+    for (int e=0; e<s.count; e++) {
+      if (collides(s, e, mask, fromX, fromY, x, y, time) && listener.onEntityCollision(s, e)) s.detach(e);
+    }
+  }
+
+  // Indica si la entidad 'e' toca al pavo. Solo lee, así que se puede comprobar desde varios hilos
+  boolean collides(EntityStore s, int e, CollisionMask mask, int fromX, int fromY, int x, int y, long time) {
+    // Las entidades ya recogidas no colisionan
+    if ((s.flags[e] & EntityStore.FLAG_DETACHED) != 0) return false;
+    EntityKind k = s.kinds[s.kind[e]];
+    CollisionMask entityMask = k.animation.getMask(time - s.animationStart[e]);
+    return sweptMaskCollision(entityMask, s.prevX[e] + k.drawOffsetX, s.prevY[e], s.posX[e] + k.drawOffsetX, s.posY[e],
+                              mask, fromX, fromY, x, y);
+  }
+}
+
+/*
+  Sistema de pintado: dibuja las entidades de una columna. Como las entidades
+  están ordenadas por columna, el llamante mantiene un cursor que avanza a la
+  par que recorre las cerillas.
+ */
+class RenderSystem {
+  // Pinta las cajas de colisión
+  boolean debug;
+
+  // Graba los comandos de todas las entidades de la columna 'col' a partir de 'cursor',
+  // y devuelve la posición de la primera entidad de las columnas siguientes. El
+  // fotograma de cada entidad se obtiene del instante 'time' del reloj de la etapa
+  int drawColumn(DrawCommands out, EntityStore s, long col, int cursor, long time) {
+    // Saltamos las entidades de columnas ya pintadas
+    while (cursor < s.count && s.column[cursor] < col) cursor++;
+
+    while (cursor < s.count && s.column[cursor] == col) {
+      int e = cursor++;
+      EntityKind k = s.kinds[s.kind[e]];
+
+      if (debug) {
+        out.rect(s.posX[e] + k.drawOffsetX, s.posY[e], s.colW[e], s.colH[e], DrawCommands.NONE, color(255, 255, 0), 1);
+      }
+
+      int tint = DrawCommands.NO_TINT;
+      if ((s.flags[e] & EntityStore.FLAG_DETACHED) != 0) {
+        // Si ha sido recogida, variamos el valor de transparencia para hacerla desaparecer
+        tint = color(255, 256 - 256 * (s.anchorY[e] - s.posY[e]) / s.anchorY[e]);
+      }
+      out.image(k.animation.getSprite(time - s.animationStart[e]), s.posX[e] + k.drawOffsetX, s.posY[e], tint);
+    }
+    return cursor;
+  }
+}
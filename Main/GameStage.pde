@@ -1,89 +1,77 @@
+import java.util.Arrays;
+
 /* //<>// //<>//
-  Esta clase representa una instancia de una animación, una
- secuencia de imágenes que se reproduce a 25fps
+  Esta clase representa una animación, una secuencia cíclica de imágenes que
+ se reproduce a un número fijo de fotogramas por segundo.
+
+ La animación no guarda ningún estado de reproducción: el fotograma que toca
+ mostrar es una función del tiempo transcurrido desde que empezó. Quien la
+ reproduce solo tiene que recordar el instante de inicio en el reloj de la
+ etapa, por lo que no hace falta actualizarla en cada fotograma y nunca
+ acumula deriva. Una misma instancia se comparte entre todas las entidades
+ que la muestran.
  */
 class Animation {
+  // Fotogramas por segundo por defecto
+  final static float DEFAULT_FPS = 25;
   // Lista de fotogramas
   PImage[] frames;
-  // Índice del fotograma que será dibujado
-  int index;
-  // Milisegundos transcurridos desde la última invocación,
-  // se encarga de controlar que la animación se reproduzca a 25fps,
-  // o lo que es lo mismo, una imagen cada 40ms
-  long lastFrame;
+  // Máscara de colisión de cada fotograma
+  CollisionMask[] masks;
+  // Fotogramas por segundo de esta animación
+  float fps;
+  // Identificador del primer fotograma en el registro de imágenes (SpriteSheet)
+  int spriteBase;
 
   // Constructor de clase. Recibe el fragmento del nombre de la animación
   // y el número de fotogramas. Con estos datos busca en la carpeta de assets
   // todos los archivos con ese nombre y construye la animación.
   public Animation(String name, int numFrames) {
+    this(name, numFrames, DEFAULT_FPS);
+  }
+
+  public Animation(String name, int numFrames, float fps) {
     PImage[] frames = new PImage[numFrames];
+    CollisionMask[] masks = new CollisionMask[numFrames];
     for (int c=0; c<numFrames; c++) {
       frames[c] = loadImage(ASSETS_PATH+name+"_"+c+".png");
-      lastFrame = 0;
+      masks[c] = new CollisionMask(frames[c]);
     }
 
     this.frames = frames;
-    this.index = 0;
-  }
-  // Devuelve la imagen correspondiente al fotograma actual
-  public PImage getImage() {
-    return frames[index];
-  }
-  // Añade el tiempo transcurrido al contador de tiempo
-  // de la animación para deterimnar si debe
-  // avanzar al siguiente fotograma
-  public void nextFrame(long delta) {
-    lastFrame += delta;
-    // 40 = 1000 * ( 1 / 25s )
-    if (lastFrame > 40) {
-      index = index+1;
-      // La animación es cíclica, volvemos a cero rebasado el último fotograma
-      if (index >= frames.length) index = 0;
-      // Si hemos avanzado un fotograma, reiniciamos el contador de tiempo
-      lastFrame = 0;
-    }
+    this.masks = masks;
+    this.fps = fps;
   }
-}
-
-/*
- Esta clase contiene una instancia de un item en el suelo. Los
- items son objetos que ayudan al jugador en su misión de salvar
- al pavo o sumar puntos.
- */
-class Item {
-  // Item para otorgar monedas
-  public final static int COIN = 0;
-  // Item para otorgar puntos de vida
-  public final static int HEART = 1;
-  // Item para otorgar puntos de vuelo
-  public final static int FLASK = 2;
-  // Animación que reproducirá
-  Animation animation;
-  // Posicion del item en la pantalla
-  Vector position;
-  // Este valor controla si el item ha colisionado con el pavo
-  // y la dirección en la que se moverá para desaparecer
-  Vector touch;
-  // Deterimna si un item está habilitado (visible y recolectable)
-  boolean enabled;
-  // Valor del item, determina la cantidad de puntos de vida, puntuación o vuelo que da al tocarlo
-  int value;
-  // Determina el tipo de item (COINS,FLASK,HEART)
-  int type;
-
-  // Constructor, inicializa los valores del item
-  public Item(Animation animation, Vector position, int type) {
-    this.type = type;
-    this.position = position;
-    this.animation = animation;
-    this.value = 0;
-    this.enabled = false;
+  // Devuelve el índice del fotograma que corresponde a los milisegundos
+  // transcurridos desde el inicio de la animación
+  public int frameAt(long elapsed) {
+    if (elapsed <= 0) return 0;
+    return (int)((long)(elapsed * (double)fps / 1000.0) % frames.length);
+  }
+  // Devuelve la imagen correspondiente al tiempo transcurrido
+  public PImage getImage(long elapsed) {
+    return frames[frameAt(elapsed)];
+  }
+  // Devuelve la máscara de colisión correspondiente al tiempo transcurrido
+  public CollisionMask getMask(long elapsed) {
+    return masks[frameAt(elapsed)];
+  }
+  // Devuelve el identificador de sprite correspondiente al tiempo transcurrido
+  public int getSprite(long elapsed) {
+    return spriteBase + frameAt(elapsed);
+  }
+  // Ancho de los fotogramas, todos tienen el mismo tamaño
+  public int getWidth() {
+    return frames[0].width;
   }
 }
+
 /*
-  Esta clase representa el estado de una cerilla.
+  Esta clase contiene el estado de todas las cerillas del camino. En lugar de
+  un objeto por cerilla, cada propiedad se guarda en su propio array, indexado
+  por la posición de la cerilla en pantalla (de izquierda a derecha).
  */
-class Match {
+class MatchStore {
   // Velocidad a la que se apaga la llama
   public final static int INTENSITY_DECAY = 2;
   // Calor máximo que una cerilla puede soportar antes de encenderse
@@ -92,31 +80,106 @@ class Match {
   public final static int MAX_INTENSITY = 150;
 
   public final static float HEAT_TRANSMISION = 5; 
+  // Número de cerillas
+  int count;
+  // Columna absoluta de la primera cerilla. Cada cerilla creada recibe un número
+  // de columna consecutivo, que sirve para relacionarla con las entidades
+  long firstColumn;
   // Posición de la cerilla en el escenario
-  Vector position;
+  int[] x, y;
   // Intensidad de la llama; 0 = apagada
-  float intensity;
+  float[] intensity;
   // Calor de la cerilla. Las cerillas están juntas en el escenario y cuando una está
   // encendida transmite calor a las cercanas. Cuando llega al límite de calor soportado
   // se enciende, creando un efecto dominó.
-  float heat;
+  float[] heat;
   // Determina si la cerilla ha sido ya usada
-  boolean used;
+  boolean[] used;
   // Este flag indica que la cerilla no tiene cabeza, y por tanto no se encenderá. Este mecanismo
   // evita incendios perpetuos por la parte derecha de la pantalla.
-  boolean noFire;
+  boolean[] noFire;
 
   // Constructor de la clase
-  Match(Vector position) {
-    this.position = position;
-    this.used = false;
-    this.heat = 0; 
-    this.intensity = 0;
-    noFire = false;
+  MatchStore(int capacity) {
+    x = new int[capacity];
+    y = new int[capacity];
+    intensity = new float[capacity];
+    heat = new float[capacity];
+    used = new boolean[capacity];
+    noFire = new boolean[capacity];
+    count = 0;
+    firstColumn = 0;
+  }
+
+  // Añade una cerilla nueva por la derecha
+  void add(int x, int y, boolean noFire) {
+    if (count == this.x.length) {
+      int capacity = count * 2;
+      this.x = Arrays.copyOf(this.x, capacity);
+      this.y = Arrays.copyOf(this.y, capacity);
+      intensity = Arrays.copyOf(intensity, capacity);
+      heat = Arrays.copyOf(heat, capacity);
+      used = Arrays.copyOf(used, capacity);
+      this.noFire = Arrays.copyOf(this.noFire, capacity);
+    }
+    this.x[count] = x;
+    this.y[count] = y;
+    intensity[count] = 0;
+    heat[count] = 0;
+    used[count] = false;
+    this.noFire[count] = noFire;
+    count++;
+  }
+
+  // Quita las 'n' primeras cerillas, desplazando el resto a la izquierda
+  void removeFirst(int n) {
+    if (n <= 0) return;
+    int rest = count - n;
+    System.arraycopy(x, n, x, 0, rest);
+    System.arraycopy(y, n, y, 0, rest);
+    System.arraycopy(intensity, n, intensity, 0, rest);
+    System.arraycopy(heat, n, heat, 0, rest);
+    System.arraycopy(used, n, used, 0, rest);
+    System.arraycopy(noFire, n, noFire, 0, rest);
+    count = rest;
+    firstColumn += n;
+  }
+
+  // Escribe todas las cerillas en una instantánea
+  void saveState(StateBuffer out) {
+    out.putInt(count);
+    out.putLong(firstColumn);
+    out.putInts(x, count);
+    out.putInts(y, count);
+    out.putFloats(intensity, count);
+    out.putFloats(heat, count);
+    out.putBooleans(used, count);
+    out.putBooleans(noFire, count);
+  }
+
+  // Restaura las cerillas de una instantánea escrita con saveState()
+  void loadState(StateBuffer in) {
+    count = in.getInt();
+    firstColumn = in.getLong();
+    if (count > x.length) {
+      x = new int[count];
+      y = new int[count];
+      intensity = new float[count];
+      heat = new float[count];
+      used = new boolean[count];
+      noFire = new boolean[count];
+    }
+    in.getInts(x, count);
+    in.getInts(y, count);
+    in.getFloats(intensity, count);
+    in.getFloats(heat, count);
+    in.getBooleans(used, count);
+    in.getBooleans(noFire, count);
   }
-  // Añade intensidad a la llama hasta el límite establecido
-  void addIntensity(float amount) {
-    this.intensity = min(this.intensity+amount, MAX_INTENSITY);
+
+  // Columna absoluta que recibirá la siguiente cerilla
+  long nextColumn() {
+    return firstColumn + count;
   }
 }
 
@@ -128,8 +191,12 @@ class Turkey {
   Vector position;
   // El pavo es un animal rico en sabores y expresiones, y cuenta con más de una animación
   Map<String, Animation> animations;
+  // Animaciones en el orden en que se añadieron, su posición sirve de identificador
+  List<Animation> animationList;
   // Animación que se reproduce actualmente
   Animation currentAnimation;
+  // Instante, en el reloj de la etapa, en que empezó la animación actual
+  long animationStart;
   // Ancho y alto del pavo
   int width, height;
 
@@ -140,40 +207,60 @@ class Turkey {
     this.position = new Vector(x, y);
 
     animations = new HashMap<String, Animation>();
+    animationList = new ArrayList<Animation>();
   }
 
   // Añade una nueva animación con nombre a la lista
   void addAnimation(String name, int frames) {
-    animations.put(name, new Animation(name, frames));
+    Animation animation = new Animation(name, frames);
+    animations.put(name, animation);
+    animationList.add(animation);
+  }
+  // Identificador de la animación actual
+  int getAnimationId() {
+    return animationList.indexOf(currentAnimation);
+  }
+  // Animación dado su identificador
+  Animation getAnimation(int id) {
+    return animationList.get(id);
   }
-  // Reproduce una animación dado su nombre
-  void playAnimation(String name) {
+  // Reproduce una animación dado su nombre. Si ya se estaba reproduciendo, continúa
+  void playAnimation(String name, long time) {
+    Animation animation = animations.get(name);
+    if (animation != currentAnimation) startAnimation(name, time);
+  }
+  // Reproduce una animación dado su nombre desde el primer fotograma
+  void startAnimation(String name, long time) {
     currentAnimation = animations.get(name);
+    animationStart = time;
+  }
+  // Identificador de sprite del fotograma que toca mostrar en el instante indicado
+  int getSprite(long time) {
+    return currentAnimation.getSprite(time - animationStart);
+  }
+  // Fotograma de la animación actual que toca mostrar en el instante indicado
+  int getFrame(long time) {
+    return currentAnimation.frameAt(time - animationStart);
+  }
+  // Máscara de colisión del fotograma que toca mostrar en el instante indicado
+  CollisionMask getMask(long time) {
+    return currentAnimation.getMask(time - animationStart);
   }
 }
 
 /*
-  Esta clase representa el estado de un enemigo
+  Entrada que mueve al pavo en un tick: la posición horizontal del ratón y el
+  estado del botón izquierdo (InputHandler.MOUSE_PRESSED, MOUSE_RELEASED o 0 si
+  no ha cambiado). La simulación de la partida solo depende de ella y del tiempo,
+  de manera que se puede enviar por la red y volver a simular
  */
-class Enemy {
-  // Determina si el enemigo está activo
-  boolean enabled;
-  // Animación asociada
-  Animation animation;
-  // Posición en la pantalla
-  Vector position;
-  // Daño que inflinge al pavo al colisionar con el
-  int strength;
-  // Tipo de enemigo
-  int type;
+class TurkeyInput {
+  int x;
+  int button;
 
-  // Constructor
-  public Enemy(Animation animation, Vector position, int type) {
-    this.animation = animation;
-    this.position = position;
-    this.enabled = false;
-    this.type = type;
-    this.strength = (1+type) * 5;
+  void set(int x, int button) {
+    this.x = x;
+    this.button = button;
   }
 }
 
@@ -184,7 +271,7 @@ class Enemy {
  * así como la gestión de entrada/salida para que los gráficos respondan a las acciones
  * del usuario.
  */
-class GameStage extends Stage {
+class GameStage extends Stage implements CollisionListener, UIListener {
   // Ajuste de corrección de perspectiva, se usa para corregir la diferencia entre el ancho de los elementos y la cabeza de la cerilla
   private final static int PERSP_X_ADJUST = -75;
   // Radio de la cabeza de la cerilla
@@ -208,17 +295,42 @@ class GameStage extends Stage {
   // Flag de depuración, para mostrar las cajas de colisión
   private final static boolean DEBUG = false;
   // Interfaz gráfica
-  ControlP5 ui;
-  // Referencia al buffer de dibujado
-  PGraphics gfx;
+  UILayer ui;
+  // Registro de imágenes usadas en los comandos de pintado
+  SpriteSheet sprites;
+  // Identificador de la imagen de fondo
+  int backgroundSprite;
+  // Lista de comandos del modo de pintado directo
+  DrawCommands commands;
+  // Hilo de pintado del modo RENDER_PIPELINED, null en modo directo
+  RenderPipeline pipeline;
+  // Rasterizador de las listas de comandos
+  Rasterizer rasterizer;
   // El pavo
   Turkey turkey;
-  // Lista de animaciones de los enemigos, indexadas por tipo
-  List<Animation> enemyAnimations;
-  // Lista de animaciones de los items, indexadas por tipo
-  List<Animation> itemAnimations;
+  // Tabla de tipos de entidad (items y enemigos), indexada por identificador
+  EntityKind[] kinds;
+  // Identificadores de los tipos de item
+  int[] itemKinds;
+  // Identificadores de los tipos de enemigo
+  int[] enemyKinds;
+  // Almacén de componentes de items y enemigos
+  EntityStore entities;
+  // Sistemas que operan sobre las entidades
+  MovementSystem movementSystem;
+  CollisionSystem collisionSystem;
+  RenderSystem renderSystem;
+  // Rango con todas las cerillas, para actualizarlas en el hilo de la etapa
+  ColumnRange allColumns = new ColumnRange();
   // Velocidad a la que se mueve el terreno
   float terrainSpeed;
+  // Generación del mundo: porcentaje de columnas con item, con enemigo y de ticks con
+  // combustión espontánea. Los escenarios de carga los modifican para forzar los peores casos
+  float itemChance = 5;
+  float enemyChance = 1;
+  float ignitionChance = 1;
+  // Velocidad fija del terreno; con 0 aumenta poco a poco con el tiempo
+  float fixedSpeed = 0;
   // Puntos de vida del pavo
   int lifePoints;
   // Puntos de vida pendientes de asignar, usado para las transiciones de las barras
@@ -229,18 +341,9 @@ class GameStage extends Stage {
   int pendingPowerPoints;
   // Milisegundos transcurridos entre el inicio del juego y la última vez que el pavo fue agredido
   long lastHitTime;
-  // Items en pantalla
-  List<Item> items;
-  // Camino de cerillas
-  List<Match> matches;
-  // Ejércitos enemigos
-  List<Enemy> enemies;
-  // Contador de cerillas, sirve como semilla para la función de generación de terreno
-  long matcherCount;
-  // Contador de items, sirve como semilla para la función de generación de terreno
-  long itemCount;
-  // Contador de enemigos, sirve como semilla para la función de generación de terreno
-  long enemyCount;
+  // Camino de cerillas. El número de columna de cada cerilla sirve como semilla
+  // para la función de generación de terreno
+  MatchStore matches;
   // Flag que indica que el pavo se encuentra ahora en pastos mas verdes
   boolean dead;
   // Vector de desplazamiento vertical
@@ -253,62 +356,194 @@ class GameStage extends Stage {
   int pendingScore;
   // Paleta de colores del fuego, para pintar acorde a la intensidad de la llama 
   List<Integer> firePalette;
+  // Cerilla tras la que se pinta al pavo, calculada en la fase de simulación (-1 si ninguna)
+  int turkeyColumn = -1;
+  // Posición del pavo en la comprobación de colisiones anterior, para barrer su recorrido
+  int turkeyFromX, turkeyFromY;
+  // Semilla con la que se genera el mundo de la partida
+  long seed;
+  // Generador aleatorio del mundo. Su estado forma parte de las partidas guardadas
+  WorldRandom world = new WorldRandom(0);
+  // Grabación de la partida en curso y fantasma contra el que se corre (null si no hay)
+  GhostRecorder ghostRecorder;
+  GhostPlayer ghost;
+  // Tinte translúcido con el que se pinta el fantasma
+  int ghostTint = color(255, 255, 255, 96);
+  // Tinte con el que se pinta el rival de una partida a dos
+  int rivalTint = color(140, 180, 255, 200);
+  // Últimos segundos de juego, para rebobinar
+  RewindBuffer rewind;
+  // Entrada local del tick en curso
+  TurkeyInput localInput = new TurkeyInput();
+  // Partida a dos jugadores en curso, null si se juega solo
+  VersusSession versus;
+  // Servidor al que se retransmite la partida, null si no hay espectadores
+  SpectatorServer broadcast;
+  // Partida retransmitida que se está siguiendo como espectador, null si se juega
+  SpectatorClient spectating;
+  // Una etapa sin cabeza solo simula: no pinta, no suena y no atiende a la entrada.
+  // Es la que lleva el mundo del rival en una partida a dos
+  boolean headless;
+  // Máscaras de colisión de las llamas, indexadas por su altura
+  CollisionMask[] flameMasks = new CollisionMask[getFlameHeight(MatchStore.MAX_INTENSITY) + 1];
 
   // Constructor de la etapa
   GameStage(PApplet applet) {
     super(applet);
   }
 
-  // Callback de inicialización
-  void onStageBegin() {
-    // Establecemos los valores iniciales
-    lifePoints = INITIAL_LIFE_POINTS;
-    powerPoints = INITIAL_POWER_POINTS;
-    terrainSpeed = SPEED;
+  // Callback de preparación, carga las animaciones del pavo, los items y los enemigos.
+  // Puede ejecutarse en el hilo de carga mientras el jugador está en el menú
+  void onStagePrepare() {
     // Cargamos la imagen del boton de volver atrás
     loadButtonImages(new String[]{"btn-back"});
-    // Creamos el boton de volver atrás
-    ui = new ControlP5(this.applet);
-    createImageButton(this, ui, "onClick", "btn-back", 25, this.height-BTN_IMAGE_HEIGHT-25);
 
-    // Asignamos una referencia permanente al buffer de gráficos para no tener que extraerla constantemente
-    // ya que esta clase hace uso intensivo de esta variable
-    this.gfx = getGraphics();
     // Creamos el pavo y asignamos las dos animaciones (saltar y correr)
     turkey = new Turkey(width/2, height/2, 150, 150); 
     turkey.addAnimation("pavo_corre", 6);
     turkey.addAnimation("pavo_salta", 6);
     // Establecemos como animación actual la de "correr"
-    turkey.playAnimation("pavo_corre");
+    turkey.startAnimation("pavo_corre", 0);
 
-    // Inicializamos las cerillas, los items y los enemigos
-    matches = new ArrayList<Match>();
-    items = new ArrayList<Item>();
-    enemies = new ArrayList<Enemy>();
+    // Cargamos los tipos de items y enemigos con sus animaciones
+    initializeEntityKinds();
+
+    // Registramos todas las imágenes animadas que aparecerán en los comandos de pintado
+    sprites = new SpriteSheet();
+    for (Animation animation : turkey.animations.values()) sprites.register(animation);
+    for (EntityKind kind : kinds) sprites.register(kind.animation);
+  }
+
+  // Callback de inicialización
+  void onStageBegin() {
+    // Establecemos los valores iniciales. Las partidas se reciclan, así que
+    // reiniciamos todo el estado que pudo dejar la anterior
+    if (appCfgSpectateHost.isEmpty()) {
+      startGhostRace();
+      // En una partida a dos, el anfitrión decide la semilla del mundo
+      if (appCfgVersusMode != VERSUS_OFF) startVersus();
+    } else {
+      startSpectating();
+    }
+    resetWorld();
+    // Creamos el boton de volver atrás
+    ui = uiManager.acquire("game.hud", this);
+    if (ui.isEmpty()) {
+      ui.addImageButton(0, "btn-back", 25, this.height-BTN_IMAGE_HEIGHT-25);
+    }
+    ui.attach();
 
     // Construimos la paleta con los colores del fuego
     initializeFirePalette();
-    // Cargamos las animaciones de los enemigos
-    initializeEnemyAnimations();
-    // Cargamos las animaciones de los items
-    initializeItemAnimations();
-  }
 
-  // Carga las animaciones de los dos tipos de enemigos
-  void initializeEnemyAnimations() {
-    enemyAnimations = new ArrayList<Animation>();
+    // El anillo de rebobinado se reserva una sola vez, las partidas siguientes lo reutilizan
+    if (rewind == null) rewind = new RewindBuffer(FRAME_RATE * appCfgRewindSeconds, 4096);
+    rewind.clear();
+
+    renderSystem = new RenderSystem();
+    renderSystem.debug = DEBUG;
+
+    // La imagen de fondo se registra al empezar, puede haber cambiado en el menú tras la preparación
+    backgroundSprite = sprites.register(backgroundImages.get(appCfgBackgroundImage));
+    commands = new DrawCommands();
+    rasterizer = createRasterizer();
 
-    for (int c=0; c<2; c++) {
-      enemyAnimations.add(new Animation("enemy_"+c, 6));
+    // Si quedó una partida a medias, la reanudamos donde se dejó. Su grabación no
+    // cubriría la partida entera, así que en ella no se corre contra el fantasma
+    if (versus == null && spectating == null && appCfgResumeRuns && resumeRun()) {
+      finishGhostRace(false);
     }
+
+    // Los espectadores que ya estuvieran conectados empiezan a seguir esta partida
+    broadcast = spectating == null ? spectatorServer : null;
+    if (broadcast != null) broadcast.keyframe(this);
+
+    // En modo segmentado, el pintado se hace en un hilo aparte sobre dos superficies alternas
+    if (appCfgRenderMode == RENDER_PIPELINED) {
+      pipeline = new RenderPipeline(getGraphics(), createGraphics(width, height), sprites, rasterizer);
+      pipeline.start();
+    }
+  }
+
+  // Devuelve el mundo al estado inicial de una partida con la semilla 'seed'
+  void resetWorld() {
+    world.setSeed(seed);
+    lifePoints = INITIAL_LIFE_POINTS;
+    powerPoints = INITIAL_POWER_POINTS;
+    pendingLifePoints = 0;
+    pendingPowerPoints = 0;
+    score = 0;
+    pendingScore = 0;
+    lastHitTime = 0;
+    dead = false;
+    fly = false;
+    vy = 0;
+    turkeyColumn = -1;
+    terrainSpeed = SPEED;
+    turkey.position.x = width/2;
+    turkey.position.y = height/2;
+    turkeyFromX = turkey.position.x;
+    turkeyFromY = turkey.position.y;
+    turkey.startAnimation("pavo_corre", getTimeElapsed());
+
+    // Inicializamos las cerillas, los items y los enemigos. Reservamos espacio
+    // para una pantalla completa, los almacenes crecen si fuera necesario
+    matches = new MatchStore(width/MATCH_HEAD_RADIUS + 2);
+    entities = new EntityStore(kinds, 64);
+
+    movementSystem = new MovementSystem();
+    collisionSystem = new CollisionSystem();
+  }
+
+  // Prepara esta etapa como mundo sin cabeza con la semilla indicada
+  void beginHeadless(long seed) {
+    headless = true;
+    prepare();
+    this.seed = seed;
+    restoreTimeElapsed(0);
+    resetWorld();
+  }
+
+  // Avanza un mundo sin cabeza un tick de 'delta' milisegundos con la entrada indicada
+  void step(long delta, TurkeyInput input) {
+    restoreTimeElapsed(getTimeElapsed() + delta);
+    simulateTick(input);
   }
-  // Carga las animaciones de los tres tipos de items
-  void initializeItemAnimations() {
-    itemAnimations = new ArrayList<Animation>();
 
-    for (int c=0; c<3; c++) {
-      itemAnimations.add(new Animation("item_"+c, 6));
+  // Los sonidos solo se reproducen en la etapa que se está mostrando
+  void playSample(String sample) {
+    if (!headless) Audio.playSample(sample);
+  }
+
+  // Construye la tabla de tipos de entidad. Para añadir un nuevo item o enemigo
+  // basta con registrarlo aquí y añadir su identificador a su grupo
+  void initializeEntityKinds() {
+    kinds = new EntityKind[] {
+      // Monedas: 75% de los items
+      new EntityKind(0, new Animation("item_0", 6), EntityKind.PICKUP_SCORE, COIN_VALUE, 0, 0, -75, 75, Audio.GET_COIN), 
+      // Corazones: 5% de los items
+      new EntityKind(1, new Animation("item_1", 6), EntityKind.PICKUP_LIFE, HEART_VALUE, 0, 0, -75, 5, Audio.GET_HEART), 
+      // Viales: 20% de los items
+      new EntityKind(2, new Animation("item_2", 6), EntityKind.PICKUP_POWER, FLASK_VALUE, 0, 0, -75, 20, Audio.GET_FLASK), 
+      // Enemigos, el daño crece con el tipo
+      new EntityKind(3, new Animation("enemy_0", 6), EntityKind.PICKUP_NONE, 0, 5, PERSP_X_ADJUST, -150, 1, null), 
+      new EntityKind(4, new Animation("enemy_1", 6), EntityKind.PICKUP_NONE, 0, 10, PERSP_X_ADJUST, -150, 1, null), 
+      new EntityKind(5, new Animation("enemy_2", 1), EntityKind.PICKUP_NONE, 0, 15, PERSP_X_ADJUST, -150, 1, null)
+    };
+    itemKinds = new int[]{0, 1, 2};
+    enemyKinds = new int[]{3, 4, 5};
+  }
+
+  // Elige aleatoriamente un tipo del grupo respetando los pesos de cada uno
+  int pickKind(int[] group) {
+    float total = 0;
+    for (int id : group) total += kinds[id].weight;
+    float r = world.random(total);
+    for (int id : group) {
+      r -= kinds[id].weight;
+      if (r < 0) return id;
     }
+    return group[group.length-1];
   }
   // Construye la paleta de colores del fuego.
   // Basándose en 6 colores básicos, crea un degradado de 384 colores usando 
@@ -328,81 +563,207 @@ class GameStage extends Stage {
 
   // Oculta la interfaz al terminar
   void onStageEnd() {
-    ui.hide();
+    ui.detach();
+    finishGhostRace(true);
+    if (versus != null) {
+      versus.close();
+      versus = null;
+    }
+    if (spectating != null) {
+      spectating.close();
+      spectating = null;
+    }
+    broadcast = null;
+    // Detenemos el hilo de pintado, dejando publicado el último fotograma completo
+    if (pipeline != null) {
+      setGraphics(pipeline.stop());
+      pipeline = null;
+    }
+  }
+
+  // Abre el fantasma, si lo hay, y siembra el mundo con su semilla para correr sobre el
+  // mismo camino. Sin fantasma se elige una semilla nueva. Después empieza a grabar.
+  // Sin carrera contra el fantasma (appCfgGhostRace) no se lee ni se graba nada
+  void startGhostRace() {
+    ghost = null;
+    ghostRecorder = null;
+    seed = (long)random(Integer.MAX_VALUE);
+    Path dir = Paths.get(sketchPath(appCfgGhostDir));
+    if (appCfgGhostRace && Files.exists(dir.resolve("best.ghost"))) {
+      try {
+        ghost = new GhostPlayer(dir.resolve("best.ghost"));
+        seed = ghost.seed;
+      }
+      catch (IOException e) {
+        println("ghost: " + e.getMessage());
+      }
+    }
+    if (!appCfgGhostRace) return;
+    try {
+      ghostRecorder = new GhostRecorder(dir.resolve("last.ghost"), seed);
+    }
+    catch (IOException e) {
+      println("ghost: " + e.getMessage());
+    }
+  }
+
+  // Avanza el fantasma y graba el tick de la partida en curso
+  void updateGhostRace() {
+    try {
+      if (ghost != null) ghost.next();
+      if (ghostRecorder != null && !dead) {
+        long now = getTimeElapsed();
+        ghostRecorder.record(turkey.position.x, turkey.position.y, turkey.getAnimationId(), turkey.getFrame(now), (int)score);
+      }
+    }
+    catch (IOException e) {
+      println("ghost: " + e.getMessage());
+      ghost = null;
+      ghostRecorder = null;
+    }
+    catch (BufferUnderflowException e) {
+      // El fichero del fantasma está truncado: termina la carrera, pero seguimos grabando
+      println("ghost: truncated ghost file");
+      closeGhost();
+    }
+  }
+
+  // Cierra el fantasma sin tocar la grabación
+  void closeGhost() {
+    try {
+      if (ghost != null) ghost.close();
+    }
+    catch (IOException e) {
+      println("ghost: " + e.getMessage());
+    }
+    ghost = null;
   }
 
-  // Callback del botón de volver, termina la etapa al hacer click
-  void onClick() {
+  // Cierra el fantasma y la grabación. Si se indica 'promote' y la partida ha superado
+  // al mejor fantasma, lo sustituye
+  void finishGhostRace(boolean promote) {
+    Path dir = Paths.get(sketchPath(appCfgGhostDir));
+    try {
+      if (ghost != null) ghost.close();
+      if (ghostRecorder != null) {
+        ghostRecorder.close();
+        if (promote && appCfgGhostRace) promoteGhost(dir.resolve("last.ghost"), dir.resolve("best.ghost"), ghostRecorder.lastScore);
+      }
+    }
+    catch (IOException e) {
+      println("ghost: " + e.getMessage());
+    }
+    ghost = null;
+    ghostRecorder = null;
+  }
+
+  // En modo segmentado es el hilo de pintado quien actualiza la superficie
+  boolean isRenderedExternally() {
+    return pipeline != null;
+  }
+
+  // Callback del botón de volver, termina la etapa al hacer click. Si la partida
+  // sigue en curso, la guardamos para reanudarla más adelante
+  public void onUIEvent(int action, float value) {
+    if (appCfgResumeRuns && !dead) saveRun();
     end();
   }
 
+  // Guarda la partida en curso, con la semilla, el tiempo y el estado del generador aleatorio
+  void saveRun() {
+    StateBuffer state = new StateBuffer(4096);
+    state.putLong(seed);
+    state.putLong(getTimeElapsed());
+    saveState(state);
+    try {
+      writeStateFile(Paths.get(sketchPath(appCfgSaveFile)), state);
+    }
+    catch (IOException e) {
+      println("save: " + e.getMessage());
+    }
+  }
+
+  // Reanuda la partida guardada, si la hay, y la borra: una partida se reanuda una
+  // sola vez. Si el fichero está dañado se empieza una partida nueva. Devuelve true
+  // si se ha reanudado
+  boolean resumeRun() {
+    Path path = Paths.get(sketchPath(appCfgSaveFile));
+    if (!Files.exists(path)) return false;
+    StateBuffer state = new StateBuffer(4096);
+    long freshSeed = seed;
+    long freshTime = getTimeElapsed();
+    boolean resumed = false;
+    try {
+      if (readStateFile(path, state)) {
+        seed = state.getLong();
+        restoreTimeElapsed(state.getLong());
+        loadState(state);
+        resumed = true;
+      }
+    }
+    catch (IOException e) {
+      println("save: " + e.getMessage());
+    }
+    catch (RuntimeException e) {
+      // Tamaños o índices fuera de rango: el mundo puede haber quedado a medio cargar
+      println("save: corrupt save file (" + e + ")");
+      seed = freshSeed;
+      restoreTimeElapsed(freshTime);
+      resetWorld();
+    }
+    finally {
+      try {
+        Files.deleteIfExists(path);
+      }
+      catch (IOException e) {
+        println("save: " + e.getMessage());
+      }
+    }
+    return resumed;
+  }
+
   // Borra la pantalla en cada iteración para volver a dibujar
-  void clear() {
+  void clear(DrawCommands out) {
     // En lugar de pintar la pantalla en negro, usamos la imagen de fondo establecida en la configuración
-    PImage background = backgroundImages.get(appCfgBackgroundImage);
-    gfx.image(background, (this.width-background.width)/2, (this.height-background.height)/2);
+    PImage background = sprites.get(backgroundSprite);
+    out.image(backgroundSprite, (this.width-background.width)/2, (this.height-background.height)/2, DrawCommands.NO_TINT);
   }
   
   // Dibuja una única cerilla en la pantalla
-  void drawMatch(Match match) {
-    int x = match.position.x;
-    int y = match.position.y;
+  void drawMatch(DrawCommands out, int c) {
+    int x = matches.x[c];
+    int y = matches.y[c];
 
     if (DEBUG) {
       // Si el flag de depuración está activado, pintamos la caja
       // de colisión de la cerilla
-      gfx.noFill();
-      gfx.strokeWeight(2);
-      gfx.stroke(255, 100, 100);
-      gfx.rect(x, y, MATCH_HEAD_RADIUS, MATCH_HEAD_RADIUS);
+      out.rect(x, y, MATCH_HEAD_RADIUS, MATCH_HEAD_RADIUS, DrawCommands.NONE, color(255, 100, 100), 2);
     } else {
       // Dibujamos la cerilla. Las cerillas no son imagenes, son elementos básicos (arcos, lineas, círculos)
       // pintados de izquierda a derecha, superponiendose unos a otros de manera que den la impresión de estar
       // dibujadas en perspectiva.
       
-      // Linea gruesa
-      gfx.strokeWeight(10);
-      // Usamos dos colores diferentes para dar sensación de profundidad
-      gfx.stroke(255, 237, 181);
+      // Linea gruesa. Usamos dos colores diferentes para dar sensación de profundidad
       // La linea está levemente inclinada para dar la sensación de perspectiva
-      gfx.line(x, y, x+50, y-5);
-      
-      gfx.stroke(214, 199, 153);
-      gfx.line(x+5, y, x+55, y-5);
-      gfx.strokeWeight(0);
-
-      if (!match.used) {
-        // Si la cerilla no ha prendido, dibujamos una interpolación de color entre rojo fósforo y blanco
-        // en función del calor transimitido a la cerilla. Sin calor = rojo, con calor máximo = blanco
-        int headCol = lerpColor(color(188, 32, 0), color(255, 255, 255), 1f*match.heat/Match.MAX_HEAT);
-        gfx.fill(headCol);
-      } else {
-        // Si la cerilla ya ha sido usada, le ponemos un color ceniza
-        gfx.fill(color(74, 52, 52));
+      out.line(x, y, x+50, y-5, color(255, 237, 181), 10);
+      out.line(x+5, y, x+55, y-5, color(214, 199, 153), 10);
+
+      // Si la cerilla es activable, dibujamos la cabeza
+      if (!matches.noFire[c]) {
+        int headCol;
+        if (!matches.used[c]) {
+          // Si la cerilla no ha prendido, dibujamos una interpolación de color entre rojo fósforo y blanco
+          // en función del calor transimitido a la cerilla. Sin calor = rojo, con calor máximo = blanco
+          headCol = lerpColor(color(188, 32, 0), color(255, 255, 255), 1f*matches.heat[c]/MatchStore.MAX_HEAT);
+        } else {
+          // Si la cerilla ya ha sido usada, le ponemos un color ceniza
+          headCol = color(74, 52, 52);
+        }
+        out.circle(x, y, MATCH_HEAD_RADIUS, headCol, color(214, 199, 153), 0);
       }
-
-      // Si la cerilla es activable, dibujamos la cabeza con el color elegido
-      if (!match.noFire) gfx.circle(x, y, MATCH_HEAD_RADIUS);
     }
   }
 
-  // Esta función dibuja un único enemigo
-  void drawEnemy(Enemy enemy) {
-    int x = enemy.position.x;
-    int y = enemy.position.y;
-    
-    // Pintamos en la posición del enemigo el fotograma actual de la animación asociada
-    gfx.image(enemy.animation.getImage(), enemy.position.x + PERSP_X_ADJUST, enemy.position.y);
-    
-    if (DEBUG) {
-      // Si está activo el flag de debug, mostramos la caja de colisión
-      gfx.noFill();
-      gfx.strokeWeight(1);
-      gfx.stroke(255, 255, 0);
-      gfx.rect(enemy.position.x, enemy.position.y, enemy.animation.getImage().width, enemy.animation.getImage().height);
-    }
-  }
-  
   // Obtiene el color con índice 'value' de la paleta de fuego como si esta tuviera 'max' elementos 
   int getFireColor(int value, int max) {
     int index = (int)(value * 1f * firePalette.size() / max);
@@ -412,32 +773,21 @@ class GameStage extends Stage {
       return firePalette.get(index);
     }
   }
-  // Dibuja un único item
-  void drawItem(Item item) {
-    if (DEBUG) {
-      // Si está activo el flag de debug, mostramos la caja de colisión
-      gfx.strokeWeight(2);
-      gfx.noFill();
-      gfx.stroke(255, 0, 255);
-      gfx.rect(item.position.x, item.position.y, item.animation.getImage().width, item.animation.getImage().height); 
-      gfx.noStroke();
-    }
-    
-    if (item.touch != null) {
-      // Si el item ha sido recolectado, variamos el valor de transparencia para hacerlo desaparecer
-      gfx.tint(255, 256 - 256 *(item.position.y - item.touch.y)/item.position.y); 
-      gfx.image(item.animation.getImage(), item.touch.x, item.touch.y);
-      gfx.noTint();
-    } else {
-      // Dibujamos el fotograma actual de la animación asociada en la posición del item
-      gfx.image(item.animation.getImage(), item.position.x, item.position.y);
+  // Devuelve la máscara rectangular de una llama, creándola la primera vez que se necesita
+  CollisionMask getFlameMask(int flameHeight) {
+    if (flameMasks[flameHeight] == null) {
+      flameMasks[flameHeight] = new CollisionMask(MATCH_HEAD_RADIUS, flameHeight, true);
     }
+    return flameMasks[flameHeight];
+  }
+  // Crea de una vez las máscaras de todas las alturas, para poder pedirlas desde varios hilos
+  void createFlameMasks() {
+    for (int h=0; h<flameMasks.length; h++) getFlameMask(h);
   }
-
   // Devuelve la altura en pixeles de una llama dada su intensidad
   int getFlameHeight(float intensity) {
     // El valor es un poco random, ha sido ajustado hasta encontrar un equilibrio aceptable
-    return (int)(MATCH_HEAD_RADIUS * 8 * intensity / Match.MAX_INTENSITY);
+    return (int)(MATCH_HEAD_RADIUS * 8 * intensity / MatchStore.MAX_INTENSITY);
   }
 
   // Dibuja las llamas de las cerillas
@@ -445,42 +795,33 @@ class GameStage extends Stage {
   // a que mientras que el resto de elementos dependen de la cerilla sobre la que descansan 
   // para ser pintados antes o despues, las llamas ocultan todo el escenario, por lo que el orden
   // no importa.
-  void drawFire() {
-    // Quitamos el color de línea, solo relleno
-    gfx.noStroke();
-    // Iteramos por todas las cerillas
-    for (Match match : matches) {
+  void drawFire(DrawCommands out) {    // Iteramos por todas las cerillas
+    for (int c=0; c<matches.count; c++) {
       // Pintamos fuego solo si la intensidad es positiva
-      if (match.intensity > 0) {
-        int x = match.position.x;
-        int y = match.position.y;
+      if (matches.intensity[c] > 0) {
+        int x = matches.x[c];
+        int y = matches.y[c];
         // Obtenemos la altura de la llama
-        int size = getFlameHeight(match.intensity);
+        int size = getFlameHeight(matches.intensity[c]);
         // Obtenemos el color de la llama
-        int col = getFireColor((int)(Match.MAX_INTENSITY-match.intensity), Match.MAX_INTENSITY);
+        int col = getFireColor((int)(MatchStore.MAX_INTENSITY-matches.intensity[c]), MatchStore.MAX_INTENSITY);
         
-        gfx.fill(col);
-        // Dibujamos dos semióvalos con las proporciones adecuadas
-        gfx.arc(x, y, size/6, size/8, 0, PI);
-        gfx.arc(x, y, size/6, size*2, PI, PI*2);
+        // Dibujamos dos semióvalos con las proporciones adecuadas, solo relleno
+        out.arc(x, y, size/6, size/8, col, false);
+        out.arc(x, y, size/6, size*2, col, true);
 
         if (DEBUG) {
           // Si está activo el flag de debug, mostramos la caja de colisión
-          gfx.stroke(255, 0, 0);
-          gfx.rect(match.position.x, match.position.y-size, MATCH_HEAD_RADIUS, size);
+          out.rect(x, y-size, MATCH_HEAD_RADIUS, size, col, color(255, 0, 0), 1);
         }
       }
     }
   }
 
   // Dibuja el marcador de puntuación
-  void drawScore() {
-    String scoreText = String.valueOf(score);
-    gfx.textSize(32);
-    gfx.fill(255, 255, 255);
-    int textWidth = (int)gfx.textWidth(scoreText);
+  void drawScore(DrawCommands out) {
     // Lo pintamos arriba a la derecha, con 25px de padding
-    gfx.text(scoreText, width-textWidth-25, 50);
+    out.text(String.valueOf(score), width-25, 50, 32, color(255, 255, 255), RIGHT);
   }
 
   // Crea la animación del marcador de puntos
@@ -535,7 +876,7 @@ class GameStage extends Stage {
     } else if (amount < 0) {
       // Todo el daño inflingido al pavo pasa por aquí, de manera que
       // reproducimos el sample asociado cada vez que ocurra
-      if (!dead) Audio.playSample(Audio.TURKEY_HIT);
+      if (!dead) playSample(Audio.TURKEY_HIT);
       // Restamos puntos de vida asegurandonos que nunca sean menores que 0 (¿pavos zombies?)
       if (lifePoints + pendingLifePoints +amount < 0) {
         pendingLifePoints = -lifePoints;
@@ -584,351 +925,309 @@ class GameStage extends Stage {
     return 2*height/3 + (int)( (-50 + x%100) +  cosinePathFunction(period, 50) * cosinePathFunction(period/2, 2) * cosinePathFunction(period/4, 1));
   }
 
-  // Añade un item encima de cada cerilla, ocultando los suficientes como para que no se visualicen apilados
-  // No es la función más óptima ni más bonita, pero funciona y mantiene la ilusión de perspectiva sin tener
-  // que recurrir a estructuras más complejas.
-  private void fillWithItems() {
-    
-    // Si hay items, calculamos la posición del último para empezar a añadir por ahí
-    int x = 0;
-    if (items.size() > 0) {
-      x = items.get(items.size()-1).position.x + MATCH_HEAD_RADIUS; // Usamos este valor para que coincidan verticalmente monedas y cerillas
-    }
-
-    // Mientras no se haya rellenado toda la pantalla
-    while (x<width) {
-      // Calculamos aleatoriamente el tipo: 75% de monedas, 20% de viales y 5% de corazones
-      int type = random(100) < 75 ? Item.COIN : random(100) < 80 ? Item.FLASK : Item.HEART;
-      Animation itemAnimation = itemAnimations.get(type);
-      // getTerrainHeight() es determinista, por lo que podemos confiar en que
-      // el valor devuelto corresponde con la cerilla de debajo
-      Item item = new Item(itemAnimation, new Vector(x, getTerrainHeight(itemCount/50f)-75), type);
-
-      // Establecemos el valor en función del tipo
-      switch(type) {
-      case Item.COIN:
-        item.value = COIN_VALUE;
-        break;
-      case Item.HEART:
-        item.value = HEART_VALUE;
-        break;
-      case Item.FLASK:
-        item.value = FLASK_VALUE;
-        break;
-      }
-      
-      // Solo el 5% de los items están activos
-      if (random(1, 100) < 5) item.enabled = true;
-
-      // Pasamos a la posición de la siguiente cerilla
-      x+=MATCH_HEAD_RADIUS;
-      itemCount++;
-      items.add(item);
-    }
-  }
-
-  // Añade una cerilla horizontalmente llenando toda la pantalla. Con ligeras
-  // modificaciones a la altura creamos un camino sinuoso por el que se moverá el pavo.
-  private void fillWithMatches() {
+  // Añade columnas por la derecha hasta llenar toda la pantalla. Cada columna es una cerilla, y
+  // sobre ella puede aparecer un item y un enemigo. Con ligeras modificaciones a la altura
+  // creamos un camino sinuoso por el que se moverá el pavo.
+  private void fillColumns() {
     int x = 0;
     // Calculamos la posición donde empezar a poner cerillas
-    if (matches.size() > 0) {
-      x = matches.get(matches.size()-1).position.x + MATCH_HEAD_RADIUS;
+    if (matches.count > 0) {
+      x = matches.x[matches.count-1] + MATCH_HEAD_RADIUS;
     }
     // Rellenamos con cerillas hasta llegar al ancho de la pantalla
     while (x<width) {
-      Match match = new Match(new Vector(x, getTerrainHeight(matcherCount/50f)));
+      long column = matches.nextColumn();
+      // getTerrainHeight() es determinista, por lo que los items y enemigos
+      // se colocan a la altura de la cerilla de debajo
+      int y = getTerrainHeight(column/50f);
       // Un 5% de las cerillas vienen sin mecha. Empleamos este mecanismo para
       // evitar que un encendido aleatorio se propague hasta el ancho de la pantalla,
       // creando una combustión perenne de todas las cerillas nuevas
-      if (random(100) > 95) match.noFire = true;
-      
-      match.intensity = 0;
+      matches.add(x, y, world.random(100) > 95);
+      if (broadcast != null) broadcast.matchAdded(x, y, matches.noFire[matches.count-1]);
+
+      // Solo el 5% de los items están activos
+      if (world.random(1, 100) < itemChance) spawnEntity(pickKind(itemKinds), column, x, y);
+      // Solo el 1% de los enemigos está activo
+      if (world.random(1000) > 1000 - 10*enemyChance) spawnEntity(pickKind(enemyKinds), column, x, y);
+
       x+=MATCH_HEAD_RADIUS;
-      matcherCount++;
-      matches.add(match);
     }
   }
 
-  // Añade un enemigo encima de cada cerilla, ocultando los suficientes como para que no se visualicen apilados
-  // No es la función más óptima ni más bonita, pero funciona y mantiene la ilusión de perspectiva sin tener
-  // que recurrir a estructuras más complejas.
-  private void fillWithEnemies() {
-    // Calculamos la posición donde empezar a poner enemigos
-    int x = 0;
-    if (enemies.size() > 0) {
-      x = enemies.get(enemies.size()-1).position.x + MATCH_HEAD_RADIUS;
-    }
-    // Rellenamos con cerillas hasta llegar al ancho de la pantalla
-    while (x<width) {
-      // Solo el 1% de los enemigos está activo
-      boolean enabled = random(1000) >990;
-      // Elegimos aleatoriamente el tipo de enemigo
-      int type = (int)random(enemyAnimations.size());
-      // Calculamos la posición
-      Vector position = new Vector(x, getTerrainHeight(enemyCount/50f)-150);
-      // Asignamos la animación en función del tipo
-      Enemy enemy = new Enemy(enemyAnimations.get(type), position, type);
-      // Lo activamos ( o no)
-      enemy.enabled = enabled;
-      
-      x+=MATCH_HEAD_RADIUS;
-      enemyCount++;
-      enemies.add(enemy);
-    } 
+  private void spawnEntity(int kind, long column, int x, int y) {
+    entities.spawn(kind, column, x, y, getTimeElapsed());
+    if (broadcast != null) broadcast.spawned(kind, column, x, y);
   }
 
-  // Actualizamos la posición y estado de todos los enemigos
-  void updateEnemies() {
-    
-    Iterator<Enemy> enemyIt = enemies.iterator();
-    
-    // Iteramos la lista de enemigos
-    while (enemyIt.hasNext()) {
-      Enemy enemy = enemyIt.next();
-      if (enemy.position.x < 0) {
-        // Si la posición del enemigo se sale por la izquierda de la pantalla, lo quitamos de la lista
-        enemyIt.remove();
-      } else {
-        // Lo movemos a la velocidad actual
-        enemy.position.x-=terrainSpeed;
-        if (enemy.enabled) {
-          // Si está activo, calculamos su colisión con el pavo
-          boolean collision = collision(turkey.position.x, turkey.position.y, turkey.width, turkey.height, enemy.position.x, enemy.position.y, enemy.animation.getImage().width, enemy.animation.getImage().height, 10);
-          if (collision) {
-            // Evitamos colisionar con el pavo si ya ha sido golpeado
-            if (lastHitTime == 0) {
-              // Actualizamos la marca de tiempo del ultimo golpe para hacer al pavo invulnerable unos instantes
-              lastHitTime = getTimeElapsed();
-              // Quitamos los puntos de vida correspondientes a la fuerza del enemigo
-              addLifePoints(-enemy.strength);
-            }
-          }
-        }
+  // Actualizamos la posición y estado de todos los items y enemigos
+  void updateEntities() {
+    // Comprobamos las colisiones con el pavo antes de desplazar el terreno
+    collisionSystem.update(entities, turkey.getMask(getTimeElapsed()), turkeyFromX + PERSP_X_ADJUST, turkeyFromY,
+      turkey.position.x + PERSP_X_ADJUST, turkey.position.y, getTimeElapsed(), this);
+    // Desplazamos a la izquierda todas las entidades y quitamos las que salen de pantalla
+    movementSystem.update(entities, terrainSpeed, matches.firstColumn);
+  }
+
+  // Callback de colisión de una entidad con el pavo. Devuelve true si la entidad ha sido recogida
+  public boolean onEntityCollision(EntityStore s, int e) {
+    if (s.damage[e] > 0) {
+      // Evitamos colisionar con el pavo si ya ha sido golpeado
+      if (lastHitTime == 0) {
+        // Actualizamos la marca de tiempo del ultimo golpe para hacer al pavo invulnerable unos instantes
+        lastHitTime = getTimeElapsed();
+        // Quitamos los puntos de vida correspondientes a la fuerza del enemigo
+        addLifePoints(-s.damage[e]);
       }
+      return false;
     }
 
-    // Rellenamos la lista de enemigos con nuevos enemigos que reemplacen a los eliminados
-    fillWithEnemies();
+    boolean touched = false;
+    switch(s.pickup[e]) {
+    case EntityKind.PICKUP_SCORE:
+      // Monedas: actualizamos el marcador
+      addScore(s.value[e]);
+      touched = true;
+      break;
+    case EntityKind.PICKUP_LIFE:
+      // Corazon: solo se recogen si le falta vida al pavo
+      if (getLifePoints()<INITIAL_LIFE_POINTS) {
+        addLifePoints(s.value[e]);
+        touched = true;
+      }
+      break;
+    case EntityKind.PICKUP_POWER:
+      // Viales: solo se recogen si le faltan puntos de vuelo al pavo
+      if (powerPoints<INITIAL_POWER_POINTS) {
+        addPowerPoints(s.value[e]);
+        touched = true;
+      }
+      break;
+    }
+    // Reproducimos el sample asociado al tipo
+    if (touched && s.kinds[s.kind[e]].sample != null) {
+      playSample(s.kinds[s.kind[e]].sample);
+    }
+    if (touched && broadcast != null) broadcast.collected(e);
+    return touched;
   }
 
-  // Método para calcular la colision entre dos cajas definidas por su posición y tamaño
-  // La variable padding se usa para compensar el margen entre lo que haya pintado dentro de una
-  // caja y su borde, permitiendo que dos cajas puedan coincidir hasta 2 x padding pixeles antes
-  // de detectar la colisión
-  private boolean collision(int x1, int y1, int w1, int h1, int x2, int y2, int w2, int h2, int padding) {
-    return (x1 + w1 - padding) >= (x2 + padding) && (x1 + padding) <= (x2 + w2 -padding) && (y1 + h1 - padding) >= (y2 - padding) && (y1 + padding <= y2 + h2 -padding);
-  }
-  
   // Pintamos el pavo
-  void drawTurkey() {
+  void drawTurkey(DrawCommands out) {
     if (DEBUG) {
       // Si está activo el flag de depuración, mostramos la caja de colisión
-      gfx.noFill();
-      gfx.strokeWeight(1);
-      gfx.stroke(0, 255, 0);
-      gfx.rect(turkey.position.x, turkey.position.y, turkey.width, turkey.height);
+      out.rect(turkey.position.x + PERSP_X_ADJUST, turkey.position.y, turkey.width, turkey.height, DrawCommands.NONE, color(0, 255, 0), 1);
     }
     
+    // Si el pavo ha sido golpeado recientemente, lo ponemos en rojo pulsante
+    int tint = DrawCommands.NO_TINT;
     if (lastHitTime > 0) {
-      // Si el pavo ha sido golpeado recientemente, lo ponemos en rojo pulsante
-      int tint = (int)getTimeElapsed() / 100 % 2;
-      gfx.tint(255*tint, 0, 0);
-      gfx.image(turkey.currentAnimation.getImage(), turkey.position.x + PERSP_X_ADJUST, turkey.position.y);
-      gfx.noTint();
-    } else {
-      // Pintamos en la posición del pavo la animación actual
-      gfx.image(turkey.currentAnimation.getImage(), turkey.position.x + PERSP_X_ADJUST, turkey.position.y);
+      tint = color(255 * ((int)getTimeElapsed() / 100 % 2), 0, 0);
     }
+    // Pintamos en la posición del pavo la animación actual
+    out.image(turkey.getSprite(getTimeElapsed()), turkey.position.x + PERSP_X_ADJUST, turkey.position.y, tint);
   }
 
-  // Actualizamos la posición y estado de todos los items
-  void updateItems() {
-    
-    Iterator<Item> itemIt = items.iterator();
-    
-    // Iteramos la lista de items
-    while (itemIt.hasNext()) {
-      Item item = itemIt.next();
-      if (item.position.x < 0) {
-        // Quitamos todos los items fuera de pantalla
-        itemIt.remove();
-      } else {
-        if (item.touch == null && item.enabled == true) {
-          // Si el item no ha sido recogido y está activo, comprobamos la colisión con el pavo
-          if (collision(turkey.position.x, turkey.position.y, turkey.width, turkey.height, item.position.x, item.position.y, item.animation.getImage().width, item.animation.getImage().height, 10)) {
-            // Si colisionan, determinamos el tipo de item y actuamos en consecuencia
-            boolean touched = false;
-            
-            switch(item.type) {
-            case Item.COIN:
-              // Monedas: reproducimos el sample asociado, actualizamos el marcador y marcamos el item como 'tocado'
-              Audio.playSample(Audio.GET_COIN);
-              addScore(COIN_VALUE);
-              touched = true;
-              break;
-            case Item.HEART:
-              // Corazon: reproducimos el sample asociado, actualizamos los puntos de vida y marcamos el item como 'tocado'
-              // Solo se recogen corazones si le falta vida al pavo
-              if (getLifePoints()<INITIAL_LIFE_POINTS) {
-                Audio.playSample(Audio.GET_HEART);
-                addLifePoints(item.value);
-                touched = true;
-              }
-              break;
-            case Item.FLASK:
-              // Viales: reproducimos el sample asociado, actualizamos los puntos de vuelo y marcamos el item como 'tocado'
-              // Solo se recogen viales si le faltan puntos de vuelo al pavo
-              if (powerPoints<INITIAL_POWER_POINTS) {
-                Audio.playSample(Audio.GET_FLASK);
-                addPowerPoints(item.value);
-                touched = true;
-              }
-              break;
-            }
-
-            // Si el elemento ha sido tocado (se cumplen las precondiciones), establecemos el vector touch, que marcará
-            // la nueva posición desde la que desaparecerá el item
-            if (touched) {
-              item.position.y = item.position.y-50;
-              item.touch = new Vector(item.position.x, item.position.y-10);
-            }
-          }
-        }
-      }
-      
-      // Desplazamos a la izquierda todos los items
-      item.position.x-=terrainSpeed;
-      // Si el item ha sido recogido, lo subimos hasta que desaparezca
-      if (item.touch != null) {
-        if (item.touch.y > 0) item.touch.y-=10;
-      }
-    } 
+  // Pintamos el fantasma translúcido y su puntuación bajo la nuestra
+  void drawGhost(DrawCommands out) {
+    if (ghost == null || ghost.played == 0 || ghost.isFinished()) return;
+    out.image(turkey.getAnimation(ghost.animation).spriteBase + ghost.frame, ghost.x + PERSP_X_ADJUST, ghost.y, ghostTint);
+    out.text(String.valueOf(ghost.score), width-25, 85, 24, ghostTint, RIGHT);
+  }
+
+  // Pintamos el pavo del rival de una partida a dos, con su puntuación a la izquierda de la nuestra
+  void drawRival(DrawCommands out) {
+    if (versus == null) return;
+    GameStage rival = versus.rival;
+    if (rival.dead) return;
+    int sprite = turkey.getAnimation(rival.turkey.getAnimationId()).spriteBase + rival.turkey.getFrame(rival.getTimeElapsed());
+    out.image(sprite, rival.turkey.position.x + PERSP_X_ADJUST, rival.turkey.position.y, rivalTint);
+    out.text(String.valueOf(rival.score), width-150, 50, 32, rivalTint, RIGHT);
+  }
+
+  // Abre la conexión de la partida a dos. Si no se consigue, se juega solo
+  void startVersus() {
+    try {
+      versus = new VersusSession(this, appCfgVersusMode, appCfgVersusHost, appCfgVersusPort, appCfgVersusTimeout);
+      seed = versus.seed;
+      // La grabación de una partida a dos no sirve como fantasma
+      finishGhostRace(false);
+    }
+    catch (IOException e) {
+      println("versus: " + e.getMessage());
+      versus = null;
+    }
+  }
 
-    // Añadimos nuevos items si fuera necesario
-    fillWithItems();
+  // Se conecta a la partida que se retransmite. Si no se consigue, se juega
+  void startSpectating() {
+    try {
+      spectating = new SpectatorClient(appCfgSpectateHost, appCfgSpectatePort, appCfgVersusTimeout);
+    }
+    catch (IOException e) {
+      println("spectator: " + e.getMessage());
+      spectating = null;
+      startGhostRace();
+    }
   }
 
   // Actualizamos la posición y estado de todas las cerillas
   void updateMatches() {
-    
-    Iterator<Match> matchIt = matches.iterator();
-    
-    // Iteramos todos los elementos del vector
-    while (matchIt.hasNext()) {     
-      Match match = matchIt.next();
+    removeOffscreenMatches();
+    // Todas las cerillas forman un único rango. La colisión de las llamas se comprueba
+    // con la máscara del fotograma del pavo que se está mostrando
+    allColumns.reset(0, matches.count);
+    updateMatchRange(allColumns, turkey.getMask(getTimeElapsed()));
+    finishMatchRange(allColumns);
+  }
 
-      if (match.position.x < 0) {
-        // Quitamos todas las cerillas fuera de pantalla
-        matchIt.remove();
-      } else {
-        // Desplazamos a la izquierda
-        match.position.x-=terrainSpeed;
-        
-        // Si el calor de la cerilla llega al umbral máximo, la prendemos
-        if (match.heat >= Match.MAX_HEAT) {
-          // Sonido de llama
-          Audio.playSample(Audio.FLAME);
-          match.intensity = Match.MAX_INTENSITY;
-          // Quitamos la marca de calor y la marcamos como usada
-          match.heat = 0;
-          match.used = true;
-        }
+  // Quitamos todas las cerillas fuera de pantalla, que siempre están a la izquierda
+  void removeOffscreenMatches() {
+    int offscreen = 0;
+    while (offscreen < matches.count && matches.x[offscreen] < 0) offscreen++;
+    matches.removeFirst(offscreen);
+  }
+
+  // Prende de vez en cuando una cerilla al azar
+  void sparkMatch() {
+    // 1% de probabilidad de combustión espontanea del camino
+    if (world.random(1000) < 10*ignitionChance) {
+      // Incendiamos una cerilla random con la condición de que no sea una cerilla sin cabeza
+      int mid = (int)world.random(matches.count-1);
+      if (!matches.noFire[mid]) {
+        matches.heat[mid] = MatchStore.MAX_HEAT;
+        if (broadcast != null) broadcast.sparked(mid);
+      }
+    }
+  }
 
-        // Si la cerilla está prendida
-        if (match.used && match.intensity > 0) {
-          // Reducimos la intensidad
-          match.intensity-=Match.INTENSITY_DECAY;
-
-          // Propagamos el calor a las vecinas
-          // Si hay elemento a izquierda, le pasamos calor
-          int matchIndex = matches.indexOf(match);
-          if ( matchIndex > 0) {
-            Match left = matches.get(matchIndex-1);
-            // Solo transmitmos calor a las cerillas no usadas y con cabeza
-            if (left.used == false && !left.noFire) left.heat+=Match.HEAT_TRANSMISION;
-          }
-          // Si hay elemento a izquierda, le pasamos calor
-          if ( matchIndex < matches.size() - 2) {
-            Match right = matches.get(matchIndex+1);
-            // Solo transmitmos calor a las cerillas no usadas y con cabeza
-            if (right.used == false  && !right.noFire) right.heat+=Match.HEAT_TRANSMISION;
-          }
-
-          // Calculamos la altura de la llama de cara a aplicar la colisión
-          int flameHeight = getFlameHeight(match.intensity);
-          // Buscamos si hay colisión entre la caja que contiene al fuego y elpavo
-          if (collision(match.position.x, match.position.y-flameHeight, MATCH_HEAD_RADIUS, flameHeight, turkey.position.x, turkey.position.y, turkey.width, turkey.height, 5)) {
-            // Si el pavo es vulnerable
-            if (lastHitTime == 0) {
-              // Actualizamos la fecha de ataque y quitamos puntos de vida proporcionales a la intensidad
-              lastHitTime = getTimeElapsed();
-              addLifePoints(-(int)match.intensity/10);
-            }
-          }
+  // Desplaza las cerillas del rango, las prende, consume sus llamas y propaga su calor. Solo
+  // modifica las cerillas [r.from, r.to), de manera que rangos distintos se pueden actualizar
+  // a la vez: el calor que sale del rango, los sonidos, la retransmisión y el golpe al pavo
+  // quedan anotados en el rango para finishMatchRange()
+  void updateMatchRange(ColumnRange r, CollisionMask turkeyMask) {
+    // Calor que la cerilla anterior al rango le pasa a la primera antes de que se procese
+    if (r.heated && !matches.used[r.from] && !matches.noFire[r.from]) matches.heat[r.from]+=MatchStore.HEAT_TRANSMISION;
+
+    // Iteramos todos los elementos del rango
+    for (int c=r.from; c<r.to; c++) {
+      // Desplazamos a la izquierda, recordando de dónde parte para barrer la colisión de la llama
+      int fromX = matches.x[c];
+      matches.x[c]-=terrainSpeed;
+
+      // Si el calor de la cerilla llega al umbral máximo, la prendemos
+      if (matches.heat[c] >= MatchStore.MAX_HEAT) {
+        matches.intensity[c] = MatchStore.MAX_INTENSITY;
+        // Quitamos la marca de calor y la marcamos como usada
+        matches.heat[c] = 0;
+        matches.used[c] = true;
+        // El sonido de llama y la retransmisión se hacen al terminar
+        r.ignite(c);
+      }
+
+      // Si la cerilla está prendida
+      if (matches.used[c] && matches.intensity[c] > 0) {
+        // Reducimos la intensidad
+        matches.intensity[c]-=MatchStore.INTENSITY_DECAY;
+
+        // Propagamos el calor a las vecinas
+        // Si hay elemento a izquierda, le pasamos calor
+        // Solo transmitmos calor a las cerillas no usadas y con cabeza
+        if (c > r.from) {
+          if (!matches.used[c-1] && !matches.noFire[c-1]) matches.heat[c-1]+=MatchStore.HEAT_TRANSMISION;
+        } else if (c > 0) {
+          // La de la izquierda es de otro rango, se le pasa al terminar
+          r.heatsLeft = true;
+        }
+        // Si hay elemento a derecha, le pasamos calor. Si es de otro rango ya lo ha recibido, ver scanMatchRange()
+        if (c < matches.count - 2 && c + 1 < r.to && !matches.used[c+1] && !matches.noFire[c+1]) matches.heat[c+1]+=MatchStore.HEAT_TRANSMISION;
+
+        // Calculamos la altura de la llama de cara a aplicar la colisión
+        int flameHeight = getFlameHeight(matches.intensity[c]);
+        // Buscamos si hay colisión entre la caja que contiene al fuego y la silueta del pavo
+        // a lo largo de todo lo que se han desplazado ambos desde la comprobación anterior.
+        // Solo cuenta la primera, el pavo queda invulnerable tras el golpe
+        int flameY = matches.y[c]-flameHeight;
+        if (lastHitTime == 0 && r.hit < 0 && flameHeight > 0 && sweptMaskCollision(getFlameMask(flameHeight), fromX, flameY, matches.x[c], flameY,
+                                                  turkeyMask, turkeyFromX + PERSP_X_ADJUST, turkeyFromY, turkey.position.x + PERSP_X_ADJUST, turkey.position.y)) {
+          r.hit = c;
         }
       }
     }
-    
-    // Añadimos mas cerillas si fuera necesario
-    fillWithMatches();
+  }
 
-    // 0.1% de probabilidad de combustión espontanea del camino
-    if (random(1000) < 10) {
-      // Incendiamos una cerilla random con la condición de que no sea una cerilla sin cabeza
-      int mid = (int)random(matches.size()-1);
-      if (!matches.get(mid).noFire) matches.get(mid).heat = Match.MAX_HEAT;
+  // Calcula si la última cerilla del rango pasará calor a la siguiente, tanto si la primera
+  // recibe calor de su vecina como si no. Solo lee, se invoca antes de actualizar el rango
+  void scanMatchRange(ColumnRange r) {
+    boolean cold = false, heated = true;
+    for (int c=r.from; c<r.to; c++) {
+      // En cuanto los dos casos coinciden, ya no vuelven a separarse
+      if (cold == heated) {
+        cold = heated = pushesHeat(c, cold);
+      } else {
+        cold = pushesHeat(c, false);
+        heated = pushesHeat(c, true);
+      }
+    }
+    r.pushIfCold = cold;
+    r.pushIfHeated = heated;
+  }
+
+  // Indica si la cerilla 'c' arderá al procesarla y pasará calor a la de su derecha,
+  // sabiendo si la de su izquierda se lo pasa a ella
+  boolean pushesHeat(int c, boolean heated) {
+    float heat = matches.heat[c];
+    if (heated && !matches.used[c] && !matches.noFire[c]) heat+=MatchStore.HEAT_TRANSMISION;
+    boolean burning = heat >= MatchStore.MAX_HEAT || (matches.used[c] && matches.intensity[c] > 0);
+    return burning && c < matches.count - 2;
+  }
+
+  // Aplica lo que ha quedado anotado en el rango. Los rangos se terminan de izquierda a derecha
+  void finishMatchRange(ColumnRange r) {
+    for (int i=0; i<r.ignitedCount; i++) {
+      // Sonido de llama
+      playSample(Audio.FLAME);
+      if (broadcast != null) broadcast.ignited(r.ignited[i]);
+    }
+    if (r.heatsLeft && !matches.used[r.from-1] && !matches.noFire[r.from-1]) matches.heat[r.from-1]+=MatchStore.HEAT_TRANSMISION;
+    // Si el pavo es vulnerable
+    if (r.hit >= 0 && lastHitTime == 0) {
+      // Actualizamos la fecha de ataque y quitamos puntos de vida proporcionales a la intensidad
+      lastHitTime = getTimeElapsed();
+      addLifePoints(-(int)matches.intensity[r.hit]/10);
     }
   }
 
   // Pinta el cartel de fin de juego
-  void drawGameOver() {
-    gfx.textSize(150);
-    int w = (int)gfx.textWidth("GAME OVER");
+  void drawGameOver(DrawCommands out) {
     int c = getFireColor((int)(getTimeElapsed()%1000), 1000);
-    gfx.fill(c);
-    gfx.text("GAME OVER", (this.width-w)/2, height/2 - 25);
+    out.text("GAME OVER", this.width/2, height/2 - 25, 150, c, CENTER);
   }
 
   // Pinta los puntos de vida del pavo
-  void drawLifePoints() {
-    gfx.noStroke(); 
-    gfx.fill(200, 0, 0);
-    gfx.rect(25, 25, lifePoints*3, 15);
-    gfx.fill(255, 0, 0);
-    gfx.rect(25, 25, lifePoints*3, 5);
-
-    gfx.strokeWeight(3);
+  void drawLifePoints(DrawCommands out) {
+    out.rect(25, 25, lifePoints*3, 15, color(200, 0, 0), DrawCommands.NONE, 0);
+    out.rect(25, 25, lifePoints*3, 5, color(255, 0, 0), DrawCommands.NONE, 0);
+
     // Si hay puntos pendientes de asignar, damos indicación visual
     int borderColor = (pendingLifePoints==0)?color(55, 55, 55):color(255, 255, 255);
-    gfx.stroke(borderColor);
-
-    gfx.noFill();
-    gfx.rect(25, 25, INITIAL_LIFE_POINTS*3, 15);
+    out.rect(25, 25, INITIAL_LIFE_POINTS*3, 15, DrawCommands.NONE, borderColor, 3);
   }
   // Pinta los puntos de vuelo del pavo
-  void drawPowerPoints() {
-    gfx.noStroke(); 
-    gfx.fill(0, 0, 255);
-    gfx.rect(25, 50, powerPoints*3, 15);
-    gfx.fill(0, 0, 255);
-    gfx.rect(25, 50, powerPoints*3, 5);
-
-    gfx.strokeWeight(3);
+  void drawPowerPoints(DrawCommands out) {
+    out.rect(25, 50, powerPoints*3, 15, color(0, 0, 255), DrawCommands.NONE, 0);
+    out.rect(25, 50, powerPoints*3, 5, color(0, 0, 255), DrawCommands.NONE, 0);
+
     // Si hay puntos pendientes de asignar, damos indicación visual
     int borderColor = (pendingPowerPoints==0)?color(55, 55, 55):color(255, 255, 255);
-    gfx.stroke(borderColor);
-    gfx.noFill();
-    gfx.rect(25, 50, INITIAL_POWER_POINTS*3, 15);
+    out.rect(25, 50, INITIAL_POWER_POINTS*3, 15, DrawCommands.NONE, borderColor, 3);
   }
 
   // Gestionamos la posición del pavo
-  void updateTurkey(Match matchOver) {
-    InputHandler input = getInputHandler();
+  void updateTurkey(int matchOver, TurkeyInput input) {
     // Estado del botón izquierdo del raton
-    int button = input.getMouseButtonState(InputHandler.MOUSE_LEFT);
+    int button = input.button;
 
-    
     if (button == InputHandler.MOUSE_PRESSED) {
       // Si pulsado, el pavo debe volar
       fly = true;
@@ -942,7 +1241,7 @@ class GameStage extends Stage {
       vy = FLY_THRUST;
       addPowerPoints(-2);
       // Cambiamos a la animación de vuelo
-      turkey.playAnimation("pavo_salta");
+      turkey.playAnimation("pavo_salta", getTimeElapsed());
     } else {
       // Decrementamos el vector de vuelo
       vy++;
@@ -950,17 +1249,17 @@ class GameStage extends Stage {
     // Actualizamos la altura del pavo con el vector de vuelo
     turkey.position.y+=vy;
     // Asignamos la posición x del pavo a la del ratón
-    turkey.position.x = max(min(input.getMousePosition().x,this.width-turkey.currentAnimation.getImage().width-PERSP_X_ADJUST),0);
+    turkey.position.x = max(min(input.x,this.width-turkey.currentAnimation.getWidth()-PERSP_X_ADJUST),0);
 
     if (turkey.position.y<0) {
       // Evitamos que el pavo se salga por la parte vertical de la pantalla
       turkey.position.y = 0;
-    } else if (turkey.position.y>=matchOver.position.y-turkey.height) {
+    } else if (turkey.position.y>=matches.y[matchOver]-turkey.height) {
       // Si la posición del pavo es superior a la de la cerilla que cae debajo
       // hacemos que se pose sobre la cerilla. Como esto es probable que suceda despues de
       // terminar el vuelo, cambiamos a la animación correspondiente.
-      turkey.position.y = matchOver.position.y-turkey.height;
-      turkey.playAnimation("pavo_corre");
+      turkey.position.y = matches.y[matchOver]-turkey.height;
+      turkey.playAnimation("pavo_corre", getTimeElapsed());
     }
 
     // Comprobamos la invulnerabilidad y la desactivamos cuando sea preciso
@@ -969,86 +1268,204 @@ class GameStage extends Stage {
     }
   }
   
-  // Callback de actualización y redibujado del juego
-  void onStageUpdate(long delta) {
-    // Limpiamos la pantalla
-    clear();
+  // Localiza en O(1) la cerilla sobre la que se encuentra la coordenada x. Las cerillas
+  // están separadas MATCH_HEAD_RADIUS pixeles y se desplazan todas a la vez, por lo que
+  // basta con dividir la distancia a la primera. Devuelve -1 si no hay cerilla válida
+  int findColumn(int x) {
+    if (matches.count < 2 || x < matches.x[0]) return -1;
+    int c = (x - matches.x[0]) / MATCH_HEAD_RADIUS;
+    // La primera cerilla puede haber quedado a un pixel de distancia por el redondeo,
+    // corregimos la estimación para que se cumpla x[c] <= x < x[c+1]
+    if (c > matches.count-2) c = matches.count-2;
+    while (c > 0 && matches.x[c] > x) c--;
+    while (c < matches.count-2 && matches.x[c+1] <= x) c++;
+    return (matches.x[c] <= x && x < matches.x[c+1]) ? c : -1;
+  }
+
+  // Callback de simulación, avanza todo el estado del juego un fotograma
+  void onStageSimulate(long delta) {
+    // Como espectador no se simula nada: se aplica lo recibido y se pinta
+    if (spectating != null) {
+      spectating.update(this);
+      presentFrame();
+      return;
+    }
+
+    // Mientras se mantenga pulsada la tecla R, en lugar de avanzar recuperamos en cada
+    // fotograma la instantánea anterior. Al soltarla el juego sigue desde ese punto
+    // En una partida a dos no se puede rebobinar. La grabación ya no se corresponde
+    // con la partida, así que rebobinar abandona la carrera contra el fantasma
+    if (versus == null && getInputHandler().isKeyPressed('R') && !rewind.isEmpty()) {
+      finishGhostRace(false);
+      StateBuffer state = rewind.pop();
+      restoreTimeElapsed(state.getLong());
+      loadState(state);
+      if (broadcast != null) broadcast.keyframe(this);
+      presentFrame();
+      return;
+    }
+
+    // Simulamos el tick con la entrada local
+    InputHandler input = getInputHandler();
+    localInput.set(input.getMousePosition().x, input.getMouseButtonState(InputHandler.MOUSE_LEFT));
+    if (broadcast != null) broadcast.begin(!dead);
+    simulateTick(localInput);
+    if (broadcast != null) broadcast.end(this);
+
+    // En una partida a dos, enviamos nuestra entrada y ponemos al día al rival
+    if (versus != null) versus.update(delta, localInput);
+
+    // Grabamos el tick y avanzamos el fantasma
+    updateGhostRace();
+
+    // Guardamos el tick, con el reloj de la etapa, para poder rebobinar hasta él
+    if (versus == null) {
+      StateBuffer state = rewind.push();
+      state.putLong(getTimeElapsed());
+      saveState(state);
+    }
 
+    presentFrame();
+  }
+
+  // Avanza el estado de la partida un tick con la entrada indicada. Es determinista: con el
+  // mismo estado, el mismo tiempo y la misma entrada siempre produce el mismo resultado
+  void simulateTick(TurkeyInput input) {
     // Si el pavo no está muerto, actualizamos los elementos del escenario
     if (!dead) {
-      updateItems();
-      updateMatches();
-      updateEnemies();
+      // En mundos muy anchos las entidades y las cerillas se reparten entre los núcleos
+      if (parallelUpdater.accepts(matches.count)) {
+        parallelUpdater.update(this);
+      } else {
+        updateEntities();
+        updateMatches();
+      }
+      // Añadimos mas cerillas (con sus items y enemigos) si fuera necesario
+      fillColumns();
+      sparkMatch();
       updateScore();
       updateLifePoints();
       updatePowerPoints();
     }
+    // Las colisiones de este fotograma ya están resueltas, el siguiente barrido parte de aquí
+    turkeyFromX = turkey.position.x;
+    turkeyFromY = turkey.position.y;
+
+    // Actualizamos al pavo sabiendo la cerilla en la que se encuentra
+    int column = findColumn(turkey.position.x);
+    if (column >= 0) {
+      updateTurkey(column, input);
+    }
+    // Tras moverlo, recalculamos la cerilla tras la que debe pintarse
+    turkeyColumn = findColumn(turkey.position.x);
+
+    // Para terminar, incrementamos la velocidad del juego una fracción cada cinco segundos, haciendo la dificultad progresiva
+    terrainSpeed = fixedSpeed > 0 ? fixedSpeed : SPEED + (getTimeElapsed() / 5000);
+  }
+
+  // En modo segmentado, recogemos el fotograma anterior ya pintado y enviamos este
+  // al hilo de pintado, que lo dibujará mientras simulamos el siguiente
+  void presentFrame() {
+    if (pipeline != null) {
+      setGraphics(pipeline.awaitFrame());
+      recordFrame(pipeline.nextBuffer());
+      pipeline.submit();
+    }
+  }
+
+  // Escribe todo el estado de la partida en una instantánea
+  void saveState(StateBuffer out) {
+    out.putInt(lifePoints);
+    out.putInt(pendingLifePoints);
+    out.putInt(powerPoints);
+    out.putInt(pendingPowerPoints);
+    out.putLong(score);
+    out.putInt(pendingScore);
+    out.putLong(lastHitTime);
+    out.putBoolean(dead);
+    out.putBoolean(fly);
+    out.putFloat(vy);
+    out.putFloat(terrainSpeed);
+    out.putInt(turkey.position.x);
+    out.putInt(turkey.position.y);
+    out.putInt(turkeyFromX);
+    out.putInt(turkeyFromY);
+    out.putInt(turkeyColumn);
+    out.putInt(turkey.getAnimationId());
+    out.putLong(turkey.animationStart);
+    out.putLong(world.state);
+    matches.saveState(out);
+    entities.saveState(out);
+  }
+
+  // Restaura el estado de la partida de una instantánea escrita con saveState()
+  void loadState(StateBuffer in) {
+    lifePoints = in.getInt();
+    pendingLifePoints = in.getInt();
+    powerPoints = in.getInt();
+    pendingPowerPoints = in.getInt();
+    score = in.getLong();
+    pendingScore = in.getInt();
+    lastHitTime = in.getLong();
+    dead = in.getBoolean();
+    fly = in.getBoolean();
+    vy = in.getFloat();
+    terrainSpeed = in.getFloat();
+    turkey.position.x = in.getInt();
+    turkey.position.y = in.getInt();
+    turkeyFromX = in.getInt();
+    turkeyFromY = in.getInt();
+    turkeyColumn = in.getInt();
+    turkey.currentAnimation = turkey.getAnimation(in.getInt());
+    turkey.animationStart = in.getLong();
+    world.state = in.getLong();
+    matches.loadState(in);
+    entities.loadState(in);
+  }
+
+  // Callback de redibujado del juego. En modo directo grabamos los comandos
+  // del fotograma y los reproducimos sobre la superficie de la etapa
+  void onStageUpdate(long delta) {
+    commands.clear();
+    recordFrame(commands);
+    rasterizer.rasterize(commands, sprites, getGraphics());
+  }
+
+  // Graba en 'out' los comandos de pintado del fotograma actual. Este método
+  // solo lee el estado calculado en onStageSimulate() y no lo modifica
+  void recordFrame(DrawCommands out) {
+    // Limpiamos la pantalla
+    clear(out);
 
     // Iteramos por todas las cerillas y las dibujamos una a una de izquierda a derecha
-    // En cada iteración, pintamos el item y enemigo que haya activo en esa posición
+    // En cada iteración, pintamos los items y enemigos que haya activos en esa columna
     // Si el pavo se encuentra en esa cerilla, lo pintamos justo despues
-    for (int c=0; c<matches.size(); c++) {
-      
-      Match match = matches.get(c);
-      
-      boolean drawTurkey = false;
-
-      // Si lo hemos hecho bien, en la posicion c de cada vector
-      // habrá un elemento en la misma posición que la cerilla
-      Item item = items.get(c);
-      Enemy enemy = enemies.get(c);
-
-      // Calculamos si el pavo está sobre esta cerilla comprobando
-      // que su posición x es mayor que la de la cerilla en curso pero inferior
-      // a la cerilla siguiente
-      if (turkey.position.x>=match.position.x) {
-        if (c<(matches.size()-1) && turkey.position.x < matches.get(c+1).position.x) {
-          drawTurkey=true;
-          // Actualizamos al pavo sabiendo la cerilla en la que se encuentra
-          updateTurkey(matches.get(c));
-        }
-      }
+    int cursor = 0;
+    for (int c=0; c<matches.count; c++) {
       // Dibuja la cerilla
-      drawMatch(match);
+      drawMatch(out, c);
       // Si hay  que pintar al pavo y está vivo, lo pintamos
-      if (drawTurkey && !dead) {
-        drawTurkey();
-      }
-      
-      // Pintamos solo si esta activo
-      if (item.enabled) {
-        drawItem(item);
-      }
-      // Pintamos solo si esta activo
-      if (enemy.enabled) {
-        drawEnemy(enemy);
+      if (c == turkeyColumn && !dead) {
+        drawTurkey(out);
       }
+
+      // Pintamos los items y enemigos de esta columna
+      cursor = renderSystem.drawColumn(out, entities, matches.firstColumn + c, cursor, getTimeElapsed());
     }
 
+    // El fantasma y el rival se pintan por encima del escenario, sin ocultarlo
+    drawGhost(out);
+    drawRival(out);
+
     // Terminamos de pintar los elementos de frente
-    drawScore();
-    drawFire();
-    drawLifePoints();
-    drawPowerPoints();
+    drawScore(out);
+    drawFire(out);
+    drawLifePoints(out);
+    drawPowerPoints(out);
 
     // Si el pavo ha muerto, mensaje de fin de juego
     if (dead) {
-      drawGameOver();
-    }
-
-    // Actualizamos el tiempo de animación del pavo con la diferencia de tiempo de la última ejecución
-    turkey.currentAnimation.nextFrame(delta);
-
-    // Actualizamos todas las animaciones de items con la diferencia de tiempo de la última ejecución
-    for (int c=0; c<itemAnimations.size(); c++) {
-      itemAnimations.get(c).nextFrame(delta);
+      drawGameOver(out);
     }
-    // Actualizamos todas las animaciones de enemigos con la diferencia de tiempo de la última ejecución
-    for (int c=0; c<enemyAnimations.size(); c++) {
-      enemyAnimations.get(c).nextFrame(delta);
-    }
-
-    // Para terminar, incrementamos la velocidad del juego una fracción cada cinco segundos, haciendo la dificultad progresiva
-    terrainSpeed = SPEED + (getTimeElapsed() / 5000);
   }
 }
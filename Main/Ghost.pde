@@ -0,0 +1,205 @@
+//
+// CARRERAS CONTRA FANTASMAS
+//
+// Cada partida graba, tick a tick, la posición del pavo, el fotograma que se
+// muestra y la puntuación. Al terminar, si la partida supera a la mejor, pasa a
+// ser el nuevo fantasma. En la siguiente partida se usa la misma semilla del
+// mundo y el fantasma se reproduce a la vez, pintado como un pavo translúcido.
+//
+// Formato del fichero: una cabecera fija seguida de un registro por tick. Los
+// registros guardan diferencias con el tick anterior codificadas como varint
+// (7 bits por byte, el bit alto indica que sigue otro byte) con zigzag para los
+// valores con signo, por lo que un tick típico ocupa 4 bytes.
+//
+//   int   magia 'GHST'
+//   int   versión
+//   long  semilla del mundo
+//   int   número de ticks
+//   int   puntuación final
+//   ticks x { zigzag dx, zigzag dy, varint (animación << 4 | fotograma), zigzag dscore }
+//
+// Tanto la grabación como la reproducción pasan por un buffer de tamaño fijo
+// reservado al abrir el fichero, así que la memoria no depende de la duración de
+// la partida y no se reserva nada por fotograma.
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// Identificador de los ficheros de fantasma
+final static int GHOST_MAGIC = 0x47485354;
+// Versión del formato
+final static int GHOST_VERSION = 1;
+// Tamaño de la cabecera en bytes
+final static int GHOST_HEADER_SIZE = 24;
+// Tamaño del buffer de lectura y escritura
+final static int GHOST_BUFFER_SIZE = 4096;
+// Tamaño máximo de un registro: cuatro varints de hasta cinco bytes
+final static int GHOST_MAX_RECORD = 20;
+
+/*
+  Graba una partida en un fichero de fantasma
+ */
+class GhostRecorder {
+  FileChannel channel;
+  ByteBuffer buffer;
+  long seed;
+  int ticks;
+  // Valores del tick anterior, de los que se guardan las diferencias
+  int lastX, lastY, lastScore;
+
+  GhostRecorder(Path path, long seed) throws IOException {
+    Files.createDirectories(path.toAbsolutePath().getParent());
+    channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    buffer = ByteBuffer.allocateDirect(GHOST_BUFFER_SIZE);
+    this.seed = seed;
+    // Reservamos el hueco de la cabecera, que se escribe al cerrar
+    channel.position(GHOST_HEADER_SIZE);
+  }
+
+  // Añade el estado de un tick
+  void record(int x, int y, int animation, int frame, int score) throws IOException {
+    if (buffer.remaining() < GHOST_MAX_RECORD) flush();
+    putVarint(zigzag(x - lastX));
+    putVarint(zigzag(y - lastY));
+    putVarint((animation << 4) | frame);
+    putVarint(zigzag(score - lastScore));
+    lastX = x;
+    lastY = y;
+    lastScore = score;
+    ticks++;
+  }
+
+  // Vuelca lo pendiente, escribe la cabecera y cierra el fichero
+  void close() throws IOException {
+    flush();
+    ByteBuffer header = ByteBuffer.allocate(GHOST_HEADER_SIZE);
+    header.putInt(GHOST_MAGIC).putInt(GHOST_VERSION).putLong(seed).putInt(ticks).putInt(lastScore);
+    header.flip();
+    channel.write(header, 0);
+    channel.close();
+  }
+
+  private void flush() throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) channel.write(buffer);
+    buffer.clear();
+  }
+
+  private int zigzag(int value) {
+    return (value << 1) ^ (value >> 31);
+  }
+
+  private void putVarint(int value) {
+    while ((value & ~0x7F) != 0) {
+      buffer.put((byte)((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buffer.put((byte)value);
+  }
+}
+
+/*
+  Reproduce un fichero de fantasma tick a tick, leyendo por delante en un buffer fijo
+ */
+class GhostPlayer {
+  FileChannel channel;
+  ByteBuffer buffer;
+  long seed;
+  int ticks;
+  int finalScore;
+  // Ticks ya reproducidos
+  int played;
+  // Estado del tick actual
+  int x, y, animation, frame, score;
+
+  GhostPlayer(Path path) throws IOException {
+    channel = FileChannel.open(path, StandardOpenOption.READ);
+    buffer = ByteBuffer.allocateDirect(GHOST_BUFFER_SIZE);
+    // El buffer empieza vacío y listo para leer
+    buffer.limit(0);
+    fill();
+    if (buffer.remaining() < GHOST_HEADER_SIZE || buffer.getInt() != GHOST_MAGIC || buffer.getInt() != GHOST_VERSION) {
+      channel.close();
+      throw new IOException("not a ghost file: " + path);
+    }
+    seed = buffer.getLong();
+    ticks = buffer.getInt();
+    finalScore = buffer.getInt();
+  }
+
+  // Avanza un tick. Devuelve false si el fantasma ya ha terminado su partida
+  boolean next() throws IOException {
+    if (played >= ticks) return false;
+    if (buffer.remaining() < GHOST_MAX_RECORD) fill();
+    x += unzigzag(getVarint());
+    y += unzigzag(getVarint());
+    int sprite = getVarint();
+    animation = sprite >> 4;
+    frame = sprite & 0xF;
+    score += unzigzag(getVarint());
+    played++;
+    return true;
+  }
+
+  boolean isFinished() {
+    return played >= ticks;
+  }
+
+  void close() throws IOException {
+    channel.close();
+  }
+
+  // Conserva lo que queda por leer y completa el buffer desde el fichero
+  private void fill() throws IOException {
+    buffer.compact();
+    while (buffer.hasRemaining() && channel.read(buffer) > 0);
+    buffer.flip();
+  }
+
+  private int unzigzag(int value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private int getVarint() {
+    int value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = buffer.get();
+      value |= (b & 0x7F) << shift;
+      shift += 7;
+    } while (b < 0);
+    return value;
+  }
+}
+
+// Lee la puntuación final de un fichero de fantasma, o -1 si no existe o no es válido
+int readGhostScore(Path path) {
+  if (!Files.exists(path)) return -1;
+  try {
+    GhostPlayer player = new GhostPlayer(path);
+    player.close();
+    return player.finalScore;
+  }
+  catch (IOException e) {
+    println("ghost: " + e.getMessage());
+    return -1;
+  }
+}
+
+// Sustituye al mejor fantasma por la partida recién grabada si la ha superado
+void promoteGhost(Path recorded, Path best, int score) {
+  if (score <= readGhostScore(best)) return;
+  try {
+    Files.move(recorded, best, StandardCopyOption.REPLACE_EXISTING);
+  }
+  catch (IOException e) {
+    println("ghost: " + e.getMessage());
+  }
+}
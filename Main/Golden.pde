@@ -0,0 +1,270 @@
+//
+// FOTOGRAMAS DE REFERENCIA
+//
+// Comprobación de regresiones del pintado. Se pintan una serie de escenas
+// deterministas (la etapa de juego con una semilla fija y una entrada guionizada,
+// y las etapas de presentación, menú y transición en instantes fijos) sobre
+// superficies fuera de pantalla, y cada fotograma se compara con su imagen de
+// referencia en golden/.
+//
+// Una escena de juego se pinta con cada rasterizador y todas se comparan con la
+// misma referencia, de manera que una optimización del pintado (caché de sprites,
+// blitter, composición) queda comprobada en equivalencia visual y en tiempo en
+// una sola ejecución. El informe se escribe en golden/report.csv.
+//
+// Se lanza con el argumento --golden para comparar, o --golden-record para
+// regenerar las referencias. En Linux sin pantalla: xvfb-run ./Main --golden
+// El proceso termina con código 1 si alguna escena falla.
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+// Semilla del mundo de las escenas de juego
+final static long GOLDEN_SEED = 20181224L;
+// Milisegundos por tick de las escenas guionizadas
+final static int GOLDEN_STEP = 16;
+// Veces que se pinta cada escena para medir su tiempo
+final static int GOLDEN_ITERATIONS = 10;
+// Diferencia máxima por canal que no se considera un cambio
+final static int GOLDEN_CHANNEL_TOLERANCE = 2;
+// Pixeles distintos que se admiten antes de dar la escena por fallida
+final static int GOLDEN_PIXEL_TOLERANCE = 500;
+
+/*
+  Escena a comparar: prepara el instante a capturar y pinta su fotograma
+ */
+abstract class GoldenScene {
+  // Nombre de la escena y de su imagen de referencia. Varias escenas pueden compartir referencia;
+  // al grabar, la referencia sale de la primera de ellas
+  String name, golden;
+
+  GoldenScene(String name, String golden) {
+    this.name = name;
+    this.golden = golden;
+  }
+
+  // Pinta el fotograma y devuelve la superficie en la que ha quedado. Se invoca varias veces para medir
+  abstract PGraphics draw();
+}
+
+/*
+  Lista de comandos de la etapa de juego pintada con un rasterizador
+ */
+class RasterScene extends GoldenScene {
+  DrawCommands commands;
+  SpriteSheet sprites;
+  Rasterizer rasterizer;
+  PGraphics target;
+
+  RasterScene(String name, String golden, DrawCommands commands, SpriteSheet sprites, Rasterizer rasterizer) {
+    super(name, golden);
+    this.commands = commands;
+    this.sprites = sprites;
+    this.rasterizer = rasterizer;
+    this.target = createGraphics(SCREEN_WIDTH, SCREEN_HEIGHT);
+  }
+
+  PGraphics draw() {
+    target.beginDraw();
+    rasterizer.rasterize(commands, sprites, target);
+    target.endDraw();
+    return target;
+  }
+}
+
+/*
+  Una etapa en un instante fijo, pintada con su propio onStageUpdate()
+ */
+class StageScene extends GoldenScene {
+  Stage stage;
+
+  // Arranca la etapa y la hace avanzar hasta 'time' milisegundos
+  StageScene(String name, Stage stage, long time) {
+    super(name, name);
+    this.stage = stage;
+    stage.setSize(SCREEN_WIDTH, SCREEN_HEIGHT);
+    stage.setInputHandler(controller.getInputHandler());
+    stage.begin();
+    while (stage.getTimeElapsed() + GOLDEN_STEP <= time) stage.update(GOLDEN_STEP);
+  }
+
+  PGraphics draw() {
+    stage.invalidate();
+    stage.render(0);
+    return stage.getGraphics();
+  }
+}
+
+// Crea una partida sin cabeza de ancho 'width' con la semilla de referencia, lista para avanzar con step()
+GameStage beginScriptedGame(int width) {
+  GameStage game = new GameStage(this);
+  game.setSize(width, SCREEN_HEIGHT);
+  game.setInputHandler(controller.getInputHandler());
+  game.begin();
+  game.headless = true;
+  game.seed = GOLDEN_SEED;
+  game.restoreTimeElapsed(0);
+  game.resetWorld();
+  return game;
+}
+
+// Entrada guionizada del tick 't': el pavo recorre la pantalla de lado a lado y vuela durante 30 de cada 90 ticks
+void scriptInput(TurkeyInput input, int t, int width) {
+  int button = t % 90 == 0 ? InputHandler.MOUSE_PRESSED : t % 90 == 30 ? InputHandler.MOUSE_RELEASED : 0;
+  input.set(width/2 + (int)(400 * sin(t * 0.05f)), button);
+}
+
+// Crea una partida con la semilla de referencia y la hace avanzar 'ticks' ticks con una entrada guionizada
+GameStage createGoldenGame(int ticks) {
+  GameStage game = beginScriptedGame(SCREEN_WIDTH);
+  TurkeyInput input = new TurkeyInput();
+  for (int t=0; t<ticks; t++) {
+    scriptInput(input, t, SCREEN_WIDTH);
+    game.step(GOLDEN_STEP, input);
+  }
+  return game;
+}
+
+// Construye la lista de escenas
+List<GoldenScene> createGoldenScenes() {
+  List<GoldenScene> scenes = new ArrayList<GoldenScene>();
+  int[] moments = {60, 600};
+  for (int ticks : moments) {
+    GameStage game = createGoldenGame(ticks);
+    DrawCommands commands = new DrawCommands();
+    game.recordFrame(commands);
+    String golden = "game-" + ticks;
+    scenes.add(new RasterScene(golden + "-java2d", golden, commands, game.sprites, new Java2DRasterizer()));
+    scenes.add(new RasterScene(golden + "-blitter", golden, commands, game.sprites, new BlitterRasterizer()));
+    scenes.add(new RasterScene(golden + "-strips", golden, commands, game.sprites, new StripRasterizer(Runtime.getRuntime().availableProcessors())));
+    game.end();
+  }
+  scenes.add(new StageScene("greeting", new GreetingStage(this, 3000), 500));
+  scenes.add(new StageScene("menu-500", new MenuStage(this), 500));
+  scenes.add(new StageScene("menu-2500", new MenuStage(this), 2500));
+  int[] transitions = {TransitionStage.FADE_BLACK, TransitionStage.FADE_WHITE, TransitionStage.FADE_BLEND};
+  String[] transitionNames = {"black", "white", "blend"};
+  for (int i=0; i<transitions.length; i++) {
+    StageScene from = new StageScene("transition-from", new GreetingStage(this, 3000), 0);
+    from.draw();
+    scenes.add(new StageScene("transition-" + transitionNames[i], new TransitionStage(this, from.stage, new MenuStage(this), transitions[i], 1000), 300));
+  }
+  return scenes;
+}
+
+// Configuración con la que las partidas guionizadas son reproducibles: pintado en el mismo hilo,
+// sin fantasma, sin reanudar partidas guardadas, sin rival ni retransmisión y con el fondo por defecto
+void useDeterministicConfig() {
+  appCfgRenderMode = RENDER_DIRECT;
+  appCfgGhostRace = false;
+  appCfgResumeRuns = false;
+  appCfgVersusMode = VERSUS_OFF;
+  appCfgSpectateHost = "";
+  appCfgBackgroundImage = "a";
+}
+
+// Pinta todas las escenas, las compara con sus referencias (o las graba si 'record') y
+// escribe el informe. Devuelve el número de escenas fallidas
+int runGoldenFrames(boolean record) {
+  // Las escenas no deben depender de la configuración local ni de ficheros guardados
+  useDeterministicConfig();
+
+  Path dir = Paths.get(sketchPath("golden"));
+  List<String> report = new ArrayList<String>();
+  report.add("scene,golden,hash,result,differing,max_diff,ms");
+  // Referencias grabadas en esta ejecución; el resto de escenas que las comparten se comparan con ellas
+  Set<String> recorded = new HashSet<String>();
+  int failures = 0;
+  try {
+    Files.createDirectories(dir);
+    for (GoldenScene scene : createGoldenScenes()) {
+      // Una pasada de calentamiento y después medimos
+      scene.draw();
+      long start = System.nanoTime();
+      PGraphics frame = null;
+      for (int i=0; i<GOLDEN_ITERATIONS; i++) frame = scene.draw();
+      float ms = (System.nanoTime() - start) / 1e6f / GOLDEN_ITERATIONS;
+
+      int[] actual = readSurfaceRGB(frame);
+      long hash = hashPixels(actual);
+      Path file = dir.resolve(scene.golden + ".png");
+      String result;
+      int differing = 0, maxDiff = 0;
+      if (record && recorded.add(scene.golden)) {
+        writeRGB(file, actual, frame.width, frame.height);
+        result = "RECORDED";
+      } else if (!Files.exists(file)) {
+        result = "MISSING";
+        failures++;
+      } else {
+        BufferedImage image = ImageIO.read(file.toFile());
+        int[] expected = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+        if (image.getWidth() != frame.width || image.getHeight() != frame.height) {
+          result = "SIZE";
+          failures++;
+        } else if (hashPixels(expected) == hash) {
+          result = "OK";
+        } else {
+          for (int i=0; i<actual.length; i++) {
+            int d = channelDiff(actual[i], expected[i]);
+            if (d > GOLDEN_CHANNEL_TOLERANCE) differing++;
+            maxDiff = max(maxDiff, d);
+          }
+          if (differing <= GOLDEN_PIXEL_TOLERANCE) {
+            result = "CLOSE";
+          } else {
+            result = "FAIL";
+            failures++;
+            // Guardamos lo pintado junto a la referencia para poder compararlos
+            writeRGB(dir.resolve("failed-" + scene.name + ".png"), actual, frame.width, frame.height);
+          }
+        }
+      }
+      println(String.format("golden: %-20s %-8s %016x %7d px  max %3d  %8.3f ms", scene.name, result, hash, differing, maxDiff, ms));
+      report.add(scene.name + "," + scene.golden + "," + String.format("%016x", hash) + "," + result + "," + differing + "," + maxDiff + "," + nf(ms, 0, 3));
+    }
+    Files.write(dir.resolve("report.csv"), report, StandardCharsets.UTF_8);
+  }
+  catch (IOException e) {
+    println("golden: " + e.getMessage());
+    failures++;
+  }
+  println("golden: " + failures + " failures");
+  return failures;
+}
+
+// Pixeles RGB de una superficie, sin el canal alfa
+int[] readSurfaceRGB(PGraphics surface) {
+  int[] src = getSurfacePixels(surface);
+  if (src == null) {
+    surface.loadPixels();
+    src = surface.pixels;
+  }
+  int[] rgb = new int[surface.width * surface.height];
+  for (int i=0; i<rgb.length; i++) rgb[i] = src[i] & 0xFFFFFF;
+  return rgb;
+}
+
+// Hash FNV-1a de 64 bits de los pixeles RGB
+long hashPixels(int[] pixels) {
+  long hash = 0xcbf29ce484222325L;
+  for (int p : pixels) {
+    hash = (hash ^ (p & 0xFFFFFF)) * 0x100000001b3L;
+  }
+  return hash;
+}
+
+// Mayor diferencia entre los canales de dos colores
+int channelDiff(int a, int b) {
+  int dr = abs(((a >> 16) & 0xFF) - ((b >> 16) & 0xFF));
+  int dg = abs(((a >> 8) & 0xFF) - ((b >> 8) & 0xFF));
+  int db = abs((a & 0xFF) - (b & 0xFF));
+  return max(dr, max(dg, db));
+}
+
+void writeRGB(Path file, int[] rgb, int w, int h) throws IOException {
+  BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+  image.setRGB(0, 0, w, h, rgb, 0, w);
+  ImageIO.write(image, "png", file.toFile());
+}
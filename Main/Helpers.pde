@@ -20,108 +20,191 @@ class Vector {
 }
 
 /**
- * Clock - Controla el tiempo transcurrido entre dos ejecuciones
+ * WorldRandom - Generador de números aleatorios del mundo del juego
+ *
+ * Es el mismo generador congruencial lineal de java.util.Random, pero con el
+ * estado a la vista: una partida se puede guardar y restaurar con un único long
+ * y, con la misma semilla, siempre genera el mismo mundo. Las funciones imitan
+ * a random() de Processing.
  */
-class Clock {
-  
-  int time_now;
-  int time_old;
-  int time_delta_millis;
-  float time_delta_sec;
+class WorldRandom {
+  final static long MULTIPLIER = 0x5DEECE66DL;
+  final static long ADDEND = 0xBL;
+  final static long MASK = (1L << 48) - 1;
 
-  // constructor: object initialization
-  Clock() {
-    time_now = 0;
-    time_old = 0;
-    time_delta_millis = 0;
-  }
+  // Estado interno de 48 bits
+  long state;
 
-  // executed everytime inside draw to calculate elapsed time since last execution
-  void update() {
-    time_now = millis();
-    time_delta_millis = time_now - time_old;
-    time_old = time_now;
+  WorldRandom(long seed) {
+    setSeed(seed);
+  }
 
-    time_delta_sec = time_delta_millis / 1000.0;
+  void setSeed(long seed) {
+    state = (seed ^ MULTIPLIER) & MASK;
   }
 
-  // return mseconds elapsed since last execution
-  int getDeltaMillis() {
-    return time_delta_millis;
+  // Número aleatorio en [0, high)
+  float random(float high) {
+    if (high <= 0) return 0;
+    float value;
+    do {
+      state = (state * MULTIPLIER + ADDEND) & MASK;
+      value = (int)(state >>> 24) / (float)(1 << 24) * high;
+    } while (value == high);
+    return value;
   }
 
-  // return seconds elapsed since last execution
-  float getDeltaSec() {
-    return time_delta_sec;
+  // Número aleatorio en [low, high)
+  float random(float low, float high) {
+    if (low >= high) return low;
+    return low + random(high - low);
   }
 }
 
+/*
+ * Colisión continua entre dos cajas que se han desplazado desde la comprobación anterior.
+ * La caja A pasa de (ax0, ay0) a (ax1, ay1) y la caja B de (bx0, by0) a (bx1, by1), ambas
+ * con tamaño constante. En lugar de comparar solo las posiciones finales, se barre el
+ * movimiento de A relativo a B y se busca algún instante del intervalo en que se toquen,
+ * de manera que ninguna de las dos atraviesa a la otra por grande que sea el salto.
+ * Los bordes que se tocan cuentan como colisión.
+ */
+boolean sweptCollision(int ax0, int ay0, int ax1, int ay1, int aw, int ah,
+                       int bx0, int by0, int bx1, int by1, int bw, int bh) {
+  // Trabajamos en el sistema de referencia de B: B queda quieta en el origen
+  float rx = ax0 - bx0, ry = ay0 - by0;
+  float dx = (ax1 - bx1) - rx, dy = (ay1 - by1) - ry;
+  // Intervalo de tiempo [enter, exit] en el que las proyecciones sobre cada eje se solapan
+  float enter = 0, exit = 1;
+  if (dx == 0) {
+    if (rx > bw || rx + aw < 0) return false;
+  } else {
+    float t0 = (-aw - rx) / dx, t1 = (bw - rx) / dx;
+    enter = max(enter, min(t0, t1));
+    exit = min(exit, max(t0, t1));
+  }
+  if (dy == 0) {
+    if (ry > bh || ry + ah < 0) return false;
+  } else {
+    float t0 = (-ah - ry) / dy, t1 = (bh - ry) / dy;
+    enter = max(enter, min(t0, t1));
+    exit = min(exit, max(t0, t1));
+  }
+  return enter <= exit;
+}
+
 /**
- * Timer - Cronometro
+ * Clock - Controla el tiempo transcurrido entre dos ejecuciones
  *
- * Esta clase no está actualmente en uso, las instancias de Stage tienen su propio control de tiempo
+ * Mide el tiempo con System.nanoTime(), que es monótono y tiene resolución de
+ * nanosegundos. Cada delta se limita a un máximo para que un bloqueo puntual
+ * (recolector de basura, carga de disco) no se convierta en un salto en la
+ * simulación, se suaviza con una media exponencial para eliminar el vaivén
+ * 16/17 ms entre fotogramas y se multiplica por una escala de tiempo global.
+ * Con un paso fijo el reloj ignora el tiempo real y avanza siempre lo mismo,
+ * lo que permite ejecutar la simulación a un ritmo exacto.
+ *
+ * Las etapas trabajan en milisegundos enteros; el reloj acumula el tiempo de
+ * juego en nanosegundos y entrega en cada fotograma los milisegundos enteros
+ * que ha cruzado, de manera que la parte fraccionaria no se pierde nunca
  */
+class Clock {
+  // Nanosegundos por milisegundo
+  final static long NANOS_PER_MILLI = 1000000L;
+
+  // Delta máximo que se admite en un fotograma, en nanosegundos
+  long maxDeltaNanos = 100 * NANOS_PER_MILLI;
+  // Peso del último delta en la media exponencial. Con 1 no hay suavizado
+  double smoothing = 0.25;
+  // Factor de escala del tiempo de juego. Con 2 la simulación va al doble de velocidad
+  double timeScale = 1.0;
+  // Paso fijo en nanosegundos, 0 si el reloj sigue el tiempo real
+  long fixedStepNanos = 0;
+
+  // Instante de la última actualización
+  long lastNanos;
+  // Delta suavizado del tiempo real, antes de aplicar la escala
+  double smoothedNanos;
+  // Delta de tiempo de juego del último fotograma
+  long deltaNanos;
+  // Tiempo de juego acumulado desde la creación del reloj
+  long totalNanos;
+  // Milisegundos enteros que ha cruzado el tiempo de juego en el último fotograma
+  int deltaMillis;
+
+  Clock() {
+    lastNanos = System.nanoTime();
+    smoothedNanos = 1000000000.0 / FRAME_RATE;
+  }
 
-class Timer {
-  // Dirección adelante / cuentra atrás
-  boolean up;
-  // Tiempo de inicio
-  int startPoint;
-  // Tiempo de fin
-  int endPoint;
-  // Flag de parada
-  boolean counting;
-  // Tiempo transcurrido
-  int currentTime;
-  // Inicialización
-  Timer() {
-    up = true;
-    startPoint = 0;
-    endPoint = 0;
-    counting = false;
-    currentTime = startPoint;
-  }
-  
-  Timer (int sPoint, int ePoint) {
-    setPoints(sPoint,ePoint);
-  }
-
-  void reset () {
-    currentTime = startPoint;
-  }
-
-  void setPoints (int sPoint, int ePoint) {
-    startPoint = sPoint;
-    endPoint = ePoint;
-
-    up = ePoint >= sPoint;
-    
-    reset();
-  }
-
-  void update (int millis) {
-    if(counting) {
-      if(up) {
-        currentTime+=millis;
-      }else{
-        currentTime-=millis;
-      }
+  // Se invoca una vez por fotograma desde draw() para calcular el tiempo transcurrido
+  void update() {
+    long now = System.nanoTime();
+    long raw = now - lastNanos;
+    lastNanos = now;
+
+    double step;
+    if (fixedStepNanos > 0) {
+      step = fixedStepNanos;
+    } else {
+      // Limitamos los saltos y suavizamos el delta real
+      raw = Math.min(Math.max(raw, 0), maxDeltaNanos);
+      smoothedNanos += smoothing * (raw - smoothedNanos);
+      step = smoothedNanos;
     }
+
+    long previousMillis = totalNanos / NANOS_PER_MILLI;
+    deltaNanos = Math.round(step * timeScale);
+    totalNanos += deltaNanos;
+    deltaMillis = (int)(totalNanos / NANOS_PER_MILLI - previousMillis);
+  }
+
+  // Descarta el tiempo transcurrido desde la última ejecución, de manera que el siguiente delta empiece ahora
+  void reset() {
+    lastNanos = System.nanoTime();
+  }
+
+  // Limita el delta de un fotograma, en milisegundos
+  void setMaxDelta(float millis) {
+    maxDeltaNanos = (long)(millis * NANOS_PER_MILLI);
+  }
+
+  // Establece el peso del último delta en la media, entre 0 (exclusive) y 1 (sin suavizado)
+  void setSmoothing(float factor) {
+    smoothing = constrain(factor, 0.01, 1);
   }
 
-  void start (boolean onoff) {
-    counting = onoff;
+  // Establece la escala del tiempo de juego
+  void setTimeScale(float scale) {
+    timeScale = Math.max(scale, 0);
   }
 
-  int getTimeMillis () {
-    return currentTime;
+  float getTimeScale() {
+    return (float)timeScale;
   }
 
-  float getTimeSec () {
-    return (currentTime / 1000.0);
+  // Fija el delta de cada fotograma en milisegundos, o vuelve al tiempo real con 0
+  void setFixedStep(float millis) {
+    fixedStepNanos = (long)(millis * NANOS_PER_MILLI);
+  }
+
+  // Milisegundos enteros de tiempo de juego transcurridos desde la última ejecución
+  int getDeltaMillis() {
+    return deltaMillis;
+  }
+
+  // Nanosegundos de tiempo de juego transcurridos desde la última ejecución
+  long getDeltaNanos() {
+    return deltaNanos;
+  }
+
+  // Segundos de tiempo de juego transcurridos desde la última ejecución
+  float getDeltaSec() {
+    return deltaNanos / 1e9f;
   }
 
-  boolean getFinish() {
-    return counting || (up && currentTime >= endPoint) || currentTime <= startPoint;
+  // Milisegundos de tiempo de juego acumulados, con parte fraccionaria
+  double getTimeMillis() {
+    return totalNanos / (double)NANOS_PER_MILLI;
   }
 }
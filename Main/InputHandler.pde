@@ -100,6 +100,11 @@ class InputHandler {
      return keyboardState.containsKey(code) && keyboardState.get(code) == KEY_PRESSED;
   }
   
+  // Indica si la tecla se ha soltado en este fotograma
+  boolean isKeyReleased(int code){
+     return keyboardState.containsKey(code) && keyboardState.get(code) == KEY_RELEASED;
+  }
+  
   List<Integer> getPressedKeys(){
     List<Integer> pressedKeys = new ArrayList<Integer>();
     for(Integer i:keyboardState.keySet()){
@@ -1,23 +1,85 @@
-import controlP5.*; //<>//
-
 // Ancho de la ventana
 final static int SCREEN_WIDTH = 1600;
 // Alto de la ventana
 final static int SCREEN_HEIGHT = 800;
+// Fotogramas por segundo
+final static int FRAME_RATE = 60;
 // Ruta de los recursos de la aplicación
 final static String ASSETS_PATH = "assets/";
 
 float appCfgAudioVolume = 25.0f;
 String appCfgAudioTheme = Audio.THEME_3;
 String appCfgBackgroundImage = "a";
+// Con más de un núcleo, la etapa de juego pinta en un hilo aparte
+int appCfgRenderMode = Runtime.getRuntime().availableProcessors() > 1 ? RENDER_PIPELINED : RENDER_DIRECT;
+// Forma de rasterizar la etapa de juego. RASTER_STRIPS reparte el pintado entre todos los núcleos
+int appCfgRasterizer = RASTER_JAVA2D;
+// Con más cerillas que estas en pantalla (unos 6000 pixeles de ancho), la simulación de la etapa
+// de juego se reparte entre todos los núcleos. Con 0 se simula siempre en el hilo de animación
+int appCfgParallelColumns = 400;
+// Fotogramas por segundo mientras el juego está en pausa. Con 0 el bucle se detiene por completo
+int appCfgPausedFrameRate = 5;
+// Escala del tiempo de juego. Por encima de 1 la simulación avanza más rápido que el tiempo real
+float appCfgTimeScale = 1.0f;
+// Delta fijo por fotograma en milisegundos, para ejecutar a un ritmo exacto. Con 0 se sigue el tiempo real
+float appCfgFixedStep = 0;
+// Segundos de juego que se pueden rebobinar manteniendo pulsada la tecla R
+int appCfgRewindSeconds = 5;
+// Al salir de una partida con el botón de volver se guarda, y se reanuda en la siguiente
+boolean appCfgResumeRuns = true;
+// Fichero, relativo al sketch, con la partida guardada
+String appCfgSaveFile = "saves/run.sav";
+// Carrera contra el fantasma de la mejor partida guardada
+boolean appCfgGhostRace = true;
+// Carpeta, relativa al sketch, con el mejor fantasma (best.ghost) y la última partida grabada (last.ghost)
+String appCfgGhostDir = "ghosts/";
+// Partida a dos: VERSUS_OFF juega solo, VERSUS_HOST espera al rival y VERSUS_JOIN se conecta a él
+int appCfgVersusMode = VERSUS_OFF;
+// Dirección y puerto del anfitrión de la partida a dos
+String appCfgVersusHost = "127.0.0.1";
+int appCfgVersusPort = 7777;
+// Milisegundos que se espera a que se conecte el rival antes de jugar solo
+int appCfgVersusTimeout = 10000;
+// Puerto en el que se retransmite la partida a los espectadores. Con 0 no se retransmite
+int appCfgSpectatorPort = 0;
+// Si no está vacío, en lugar de jugar se sigue la partida que retransmite este equipo
+String appCfgSpectateHost = "";
+int appCfgSpectatePort = 7778;
+// Segundos de juego que guarda la captura de vídeo al pulsar la tecla C. Con 0, el valor
+// por defecto, no se captura ni se reserva el anillo
+int appCfgCaptureSeconds = 0;
+// Fotogramas por segundo de la captura y reducción respecto a la pantalla. El anillo ocupa
+// (SCREEN_WIDTH/escala) x (SCREEN_HEIGHT/escala) x 4 bytes por fotograma, unos 96 MB con estos valores
+int appCfgCaptureFps = 10;
+int appCfgCaptureScale = 4;
+// Carpeta, relativa al sketch, en la que se guardan las capturas
+String appCfgCaptureDir = "captures/";
+
+// Se activa cuando la ventana pierde el foco. Lo modifica el hilo de eventos de la ventana
+volatile boolean appFocusLost = false;
 
 
 // Instancia de la clase que gestiona el ciclo de vida de las etapas
 StageController controller = new StageController(this, SCREEN_WIDTH,SCREEN_HEIGHT);
 
+// Gestor de las capas de interfaz, compartidas por todas las instancias de las etapas
+UIManager uiManager = new UIManager();
+
+// Compositor de los fundidos de las transiciones, compartido por todas ellas
+FadeCompositor fadeCompositor = new FadeCompositor(Runtime.getRuntime().availableProcessors());
+
+// Reparto de la simulación de los mundos muy anchos entre los núcleos, compartido por todas las partidas
+ParallelUpdater parallelUpdater = new ParallelUpdater(Runtime.getRuntime().availableProcessors());
+
 // Reloj global que usaremos para hacer avanzar el tiempo en el juego
 Clock clock = new Clock();
 
+// Servidor de espectadores, compartido por todas las partidas. Es null si no se retransmite
+SpectatorServer spectatorServer;
+
+// Captura de los últimos segundos de juego. Es null si no se captura
+FrameCapture capture;
+
 // Es necesario emplear el callback settings() para poder usar la función size() con parámetros
 void settings() {
   // Establecemos el tamaño de la pantalla al ancho y alto definidos
@@ -27,11 +89,28 @@ void settings() {
 // El callback settings() se invoca antes de que se cree la ventana, por lo que
 // tenemos que establecer aquí el número de fotogramas por segundo
 void setup() {
-  frameRate(60);
+  frameRate(FRAME_RATE);
   Audio.start(this);
   Audio.setVolume(appCfgAudioVolume);
   Audio.playTheme(appCfgAudioTheme);
   loadBackgroundImages();
+  // Con --golden o --golden-record solo se comprueban los fotogramas de referencia
+  if (hasArgument("--golden") || hasArgument("--golden-record")) {
+    System.exit(runGoldenFrames(hasArgument("--golden-record")) == 0 ? 0 : 1);
+  }
+  // Con --stress o --stress=nombre solo se ejecutan los escenarios de carga
+  String stress = getArgument("--stress");
+  if (stress != null) {
+    System.exit(runStressScenarios(stress.isEmpty() ? null : stress) > 0 ? 0 : 1);
+  }
+  if (appCfgSpectatorPort > 0) startSpectatorServer();
+  if (appCfgCaptureSeconds > 0) {
+    capture = new FrameCapture(SCREEN_WIDTH/appCfgCaptureScale, SCREEN_HEIGHT/appCfgCaptureScale, appCfgCaptureFps, appCfgCaptureSeconds);
+  }
+  clock.setTimeScale(appCfgTimeScale);
+  clock.setFixedStep(appCfgFixedStep);
+  // El tiempo de carga no debe llegar a la primera etapa
+  clock.reset();
 }
 
 /*
@@ -42,23 +121,119 @@ void setup() {
  * de redibujado
  */
 void draw() {
+  // Pausamos el juego al perder el foco y lo reanudamos al recuperarlo
+  if (appFocusLost && !controller.isPaused()) {
+    pauseGame();
+  } else if (!appFocusLost && controller.isPaused()) {
+    resumeGame();
+  }
+  // En pausa no hay nada que actualizar ni que pintar, y descartamos la entrada recibida
+  if (controller.isPaused()) {
+    controller.getInputHandler().clearInput();
+    return;
+  }
+
   // Actualizamos el reloj para calcular la distancia en el tiempo desde la última invocación
   clock.update();
 
+  /* Entregamos la entrada del fotograma a las capas de interfaz activas, que
+   * invocarán a las etapas si se ha pulsado algún control */
+  uiManager.update(controller.getInputHandler());
   /* Este método controla la secuencia de cambio entre etapas. En su interior
    * está cableada toda la lógica de navegación del juego.
    */
   controller.processStageSequence();
   /* Este método actualiza la etapa en curso en función del tiempo */ 
   controller.procesStageLifecycle(clock.getDeltaMillis());
-  /* Si hay una etapa cargada, volcamos su superficie de dibujo en la pantalla */
-  if (controller.getStage() != null) {
-    image(controller.getStage().getGraphics(), 0, 0);
+  /* Si hay una etapa cargada, volcamos su superficie de dibujo en la pantalla y pintamos
+   * encima las capas de interfaz activas. Si ni la etapa ni la interfaz han cambiado,
+   * la pantalla ya muestra lo correcto y nos ahorramos el volcado */
+  Stage stage = controller.getStage();
+  // Hay que mirarlo antes de presentar el fotograma, que lo marca como visto
+  boolean stageChanged = stage != null && stage.hasChanged();
+  if (stage != null && (stageChanged || uiManager.isDirty())) {
+    drawStageSurface(stage.getGraphics());
+    stage.markPresented();
+    uiManager.draw(g);
+  }
+  /* Copiamos el fotograma de la partida en la captura y, si se ha pulsado la tecla C, guardamos
+   * los últimos segundos. Solo se captura el juego, y solo cuando hay un fotograma nuevo: los
+   * menús y las pausas no gastan el anillo. El guardado se hace en otro hilo, aquí solo se copian pixeles */
+  if (capture != null && stage != null) {
+    if (stage instanceof GameStage && stageChanged) capture.offer(stage.getGraphics());
+    if (controller.getInputHandler().isKeyReleased('C')) saveCapture();
   }
   /* Finalmente, limpiamos las interrupciones del buffer de entrada */
   controller.getInputHandler().clearInput();
 }
 
+// Indica si el sketch se ha lanzado con el argumento indicado
+boolean hasArgument(String name) {
+  return args != null && Arrays.asList(args).contains(name);
+}
+
+// Valor de un argumento --nombre=valor; cadena vacía si se ha pasado --nombre sin valor y null si no se ha pasado
+String getArgument(String name) {
+  if (args == null) return null;
+  for (String arg : args) {
+    if (arg.equals(name)) return "";
+    if (arg.startsWith(name + "=")) return arg.substring(name.length() + 1);
+  }
+  return null;
+}
+
+// Abre el servidor de espectadores. Si el puerto no está disponible se juega sin retransmitir
+void startSpectatorServer() {
+  try {
+    spectatorServer = new SpectatorServer(appCfgSpectatorPort);
+  }
+  catch (IOException e) {
+    println("spectator: " + e.getMessage());
+  }
+}
+
+// Guarda los últimos segundos capturados en una carpeta nueva con la fecha y la hora
+void saveCapture() {
+  String name = "clip-" + year() + nf(month(), 2) + nf(day(), 2) + "-" + nf(hour(), 2) + nf(minute(), 2) + nf(second(), 2);
+  Path dir = Paths.get(sketchPath(appCfgCaptureDir + name));
+  int dropped = capture.dropped;
+  if (capture.save(dir)) {
+    println("capture: saving to " + dir + " (" + dropped + " frames dropped so far)");
+  } else {
+    println("capture: nothing to save or a clip is still being saved");
+  }
+}
+
+// Detiene la etapa en curso y la música, y reduce el ritmo del bucle principal
+void pauseGame() {
+  controller.pause();
+  Audio.pause();
+  if (appCfgPausedFrameRate > 0) {
+    frameRate(appCfgPausedFrameRate);
+  } else {
+    noLoop();
+  }
+}
+
+// Reanuda la etapa en curso y la música, y recupera el ritmo normal
+void resumeGame() {
+  controller.resume();
+  Audio.resume();
+  frameRate(FRAME_RATE);
+  // El tiempo que ha durado la pausa no debe llegar a las etapas
+  clock.reset();
+}
+
+// Callbacks de foco de la ventana, se invocan desde el hilo de eventos
+void focusLost() {
+  appFocusLost = true;
+}
+
+void focusGained() {
+  appFocusLost = false;
+  // Si el bucle estaba detenido, lo reactivamos para que draw() reanude el juego
+  if (!isLooping()) loop();
+}
 
 void mousePressed(){
   // Informamos al controlador del ratón de que se ha presionado un botón
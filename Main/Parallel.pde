@@ -0,0 +1,171 @@
+//
+// ACTUALIZACIÓN EN PARALELO
+//
+// En mundos muy anchos (instalaciones con varios monitores) la simulación de la
+// etapa de juego se reparte entre todos los núcleos. Las cerillas se dividen en
+// rangos de columnas consecutivas y cada rango se actualiza en una tarea de un
+// ForkJoinPool; las entidades se reparten igual por su posición en el almacén.
+//
+// Casi todo el trabajo de una columna es suyo (desplazamiento, consumo de la llama,
+// colisión con el pavo). Lo único que cruza columnas es el calor que una cerilla
+// encendida pasa a sus vecinas, y se resuelve con un intercambio de bordes:
+//
+//   - Lo que la última cerilla de un rango pasa a la primera del siguiente llega
+//     antes de que esta se procese, y puede encenderla en el mismo tick (y esta a
+//     la siguiente, en cadena). Antes de actualizar, cada rango calcula en paralelo
+//     si su última cerilla pasará calor en los dos casos posibles: recibiendo calor
+//     de su vecina o sin recibirlo. Después se encadenan los rangos de izquierda a
+//     derecha, una operación por rango, y cada uno sabe ya lo que recibe.
+//   - Lo que la primera cerilla de un rango pasa a la última del anterior llega
+//     cuando esta ya se ha procesado, así que se anota y se suma al terminar.
+//
+// Los efectos que no son de una columna (sonidos, golpes al pavo, recogida de
+// entidades, retransmisión) se anotan en cada rango y se aplican al terminar en el
+// mismo orden que en la actualización secuencial. El resultado es idéntico bit a
+// bit, de manera que la partida a dos, los espectadores y los fotogramas de
+// referencia no distinguen un modo del otro.
+
+// Columnas mínimas de un rango; por debajo no compensa repartir el trabajo
+final static int PARALLEL_MIN_RANGE = 64;
+
+/*
+  Rango de cerillas [from, to) y lo que su actualización deja pendiente para los vecinos
+ */
+class ColumnRange {
+  int from, to;
+  // La cerilla anterior al rango le pasa calor a la primera antes de que se procese
+  boolean heated;
+  // Si la última cerilla pasará calor a la siguiente, sin recibirlo y recibiéndolo en la primera
+  boolean pushIfCold, pushIfHeated;
+  // La primera cerilla ha ardido y pasa calor a la anterior, que es de otro rango
+  boolean heatsLeft;
+  // Primera cerilla cuya llama ha tocado al pavo, o -1
+  int hit;
+  // Cerillas prendidas, en orden
+  int[] ignited = new int[64];
+  int ignitedCount;
+
+  void reset(int from, int to) {
+    this.from = from;
+    this.to = to;
+    heated = false;
+    heatsLeft = false;
+    hit = -1;
+    ignitedCount = 0;
+  }
+
+  void ignite(int c) {
+    if (ignitedCount == ignited.length) ignited = Arrays.copyOf(ignited, ignitedCount * 2);
+    ignited[ignitedCount++] = c;
+  }
+}
+
+/*
+  Reparto de la actualización de la etapa de juego entre los núcleos. Solo se usa
+  desde el hilo de animación, así que una única instancia sirve a todas las partidas
+ */
+class ParallelUpdater {
+  // Fases de las tareas: comprobar las colisiones de las entidades y calcular los bordes
+  // de los rangos de cerillas, y después desplazar las entidades y actualizar las cerillas
+  final static int DETECT = 0;
+  final static int UPDATE = 1;
+
+  // Pool de hilos en el que se procesan los rangos
+  ForkJoinPool pool;
+  // Rangos de cerillas, se reutilizan en cada tick
+  ColumnRange[] ranges;
+  // Rangos en uso en el tick actual. Las entidades se reparten en el mismo número de rangos
+  int rangeCount;
+  // Entidades que tocan al pavo en el tick actual
+  boolean[] hits = new boolean[256];
+
+  // Partida que se está actualizando y datos del tick, que leen las tareas
+  GameStage stage;
+  CollisionMask turkeyMask;
+  long time;
+  long firstColumn;
+
+  // Constructor
+  ParallelUpdater(int threads) {
+    pool = new ForkJoinPool(max(1, threads));
+    ranges = new ColumnRange[pool.getParallelism()];
+    for (int i=0; i<ranges.length; i++) ranges[i] = new ColumnRange();
+  }
+
+  // Indica si un mundo con este número de cerillas se actualiza en paralelo
+  boolean accepts(int columns) {
+    return appCfgParallelColumns > 0 && columns > appCfgParallelColumns && pool.getParallelism() > 1;
+  }
+
+  // Hace lo mismo que GameStage.updateEntities() seguido de GameStage.updateMatches()
+  void update(GameStage stage) {
+    this.stage = stage;
+    EntityStore s = stage.entities;
+    time = stage.getTimeElapsed();
+    turkeyMask = stage.turkey.getMask(time);
+    // Las entidades se desplazan con las cerillas que había antes de quitar las que salen de pantalla
+    firstColumn = stage.matches.firstColumn;
+    stage.removeOffscreenMatches();
+    // Las máscaras de las llamas se crean al pedirlas; las creamos todas antes de repartir
+    stage.createFlameMasks();
+    if (hits.length < s.count) hits = new boolean[max(s.count, hits.length * 2)];
+    int count = stage.matches.count;
+    rangeCount = min(ranges.length, max(1, count / PARALLEL_MIN_RANGE));
+    for (int i=0; i<rangeCount; i++) ranges[i].reset(i * count / rangeCount, (i + 1) * count / rangeCount);
+
+    pool.invoke(new RangeTask(DETECT, 0, rangeCount));
+    // La recogida modifica el marcador y la vida del pavo, se aplica en orden. Como puede
+    // golpear al pavo, va antes que las llamas
+    for (int e=0; e<s.count; e++) {
+      if (hits[e] && stage.onEntityCollision(s, e)) s.detach(e);
+    }
+    // Intercambio de bordes: lo que cada rango recibe de su izquierda depende de lo que le llega al anterior
+    for (int i=1; i<rangeCount; i++) {
+      ColumnRange previous = ranges[i-1];
+      ranges[i].heated = previous.heated ? previous.pushIfHeated : previous.pushIfCold;
+    }
+    pool.invoke(new RangeTask(UPDATE, 0, rangeCount));
+    s.compact();
+    for (int i=0; i<rangeCount; i++) stage.finishMatchRange(ranges[i]);
+    this.stage = null;
+  }
+
+  // Procesa el rango 'i' de la fase indicada: el rango de cerillas y su parte de las entidades
+  private void process(int phase, int i) {
+    EntityStore s = stage.entities;
+    int from = i * s.count / rangeCount;
+    int to = (i + 1) * s.count / rangeCount;
+    if (phase == DETECT) {
+      for (int e=from; e<to; e++) {
+        hits[e] = stage.collisionSystem.collides(s, e, turkeyMask, stage.turkeyFromX + GameStage.PERSP_X_ADJUST, stage.turkeyFromY,
+          stage.turkey.position.x + GameStage.PERSP_X_ADJUST, stage.turkey.position.y, time);
+      }
+      stage.scanMatchRange(ranges[i]);
+    } else {
+      stage.movementSystem.move(s, stage.terrainSpeed, firstColumn, from, to);
+      stage.updateMatchRange(ranges[i], turkeyMask);
+    }
+  }
+
+  // Tarea que divide los rangos en dos hasta quedarse con uno
+  class RangeTask extends RecursiveAction {
+    private final static long serialVersionUID = 1L;
+
+    int phase, from, to;
+
+    RangeTask(int phase, int from, int to) {
+      this.phase = phase;
+      this.from = from;
+      this.to = to;
+    }
+
+    protected void compute() {
+      if (to - from == 1) {
+        process(phase, from);
+      } else {
+        int mid = (from + to) / 2;
+        invokeAll(new RangeTask(phase, from, mid), new RangeTask(phase, mid, to));
+      }
+    }
+  }
+}
@@ -0,0 +1,833 @@
+//
+// PINTADO MEDIANTE LISTAS DE COMANDOS
+//
+// La etapa de juego no pinta directamente sobre su superficie. En su lugar, la fase
+// de pintado graba una lista compacta de comandos primitivos (sprite, línea, círculo,
+// arco, rectángulo y texto) que después se reproduce sobre una superficie. Esto
+// permite reproducir la lista en el mismo hilo, o en un hilo de pintado dedicado
+// mientras se simula el siguiente fotograma.
+import java.util.IdentityHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import processing.awt.PGraphicsJava2D;
+
+// Modo de pintado: los comandos se reproducen en el hilo de animación
+final static int RENDER_DIRECT = 0;
+// Modo de pintado: los comandos se reproducen en un hilo dedicado, solapado con la simulación
+final static int RENDER_PIPELINED = 1;
+
+// Rasterizado: Java2D sobre la superficie completa, en un solo núcleo
+final static int RASTER_JAVA2D = 0;
+// Rasterizado: la superficie se divide en franjas horizontales pintadas en paralelo
+final static int RASTER_STRIPS = 1;
+// Rasterizado: los sprites se copian directamente sobre los pixeles con un blitter propio
+final static int RASTER_BLITTER = 2;
+
+// Rasterizador por franjas, compartido por todas las partidas. Se crea la primera vez que se
+// pide, y así las etapas reutilizadas no crean un pool de hilos en cada ronda
+StripRasterizer stripRasterizer;
+
+// Devuelve el rasterizador configurado en appCfgRasterizer
+Rasterizer createRasterizer() {
+  if (appCfgRasterizer == RASTER_STRIPS) {
+    if (stripRasterizer == null) stripRasterizer = new StripRasterizer(Runtime.getRuntime().availableProcessors());
+    return stripRasterizer;
+  } else if (appCfgRasterizer == RASTER_BLITTER) {
+    return new BlitterRasterizer();
+  }
+  return new Java2DRasterizer();
+}
+
+// Devuelve el array de pixeles vivo sobre el que pinta Java2D en una superficie, o null si
+// la superficie no es una imagen ARGB en memoria. Escribir en él es visible inmediatamente
+// para Java2D y para el siguiente endDraw()
+int[] getSurfacePixels(PGraphics g) {
+  if (!(g instanceof PGraphicsJava2D)) return null;
+  Object image = ((PGraphicsJava2D) g).getImage();
+  if (!(image instanceof BufferedImage)) return null;
+  BufferedImage buffer = (BufferedImage) image;
+  if (buffer.getType() != BufferedImage.TYPE_INT_ARGB || !(buffer.getRaster().getDataBuffer() instanceof DataBufferInt)) return null;
+  return ((DataBufferInt) buffer.getRaster().getDataBuffer()).getData();
+}
+
+// Vuelca la superficie de una etapa en la pantalla. Con el blitter activo, copiamos
+// directamente los pixeles que endDraw() ya dejó en surface.pixels
+void drawStageSurface(PGraphics surface) {
+  if (appCfgRasterizer == RASTER_BLITTER && surface.pixels != null && surface.width == width && surface.height == height) {
+    if (pixels == null) loadPixels();
+    System.arraycopy(surface.pixels, 0, pixels, 0, pixels.length);
+    updatePixels();
+  } else {
+    image(surface, 0, 0);
+  }
+}
+
+/*
+  Registro de imágenes. Cada imagen recibe un identificador entero que
+  es el que viaja en los comandos de pintado.
+ */
+class SpriteSheet {
+  // Imágenes registradas, indexadas por identificador
+  PImage[] sprites;
+  // Número de imágenes registradas
+  int count;
+  // Identificadores de las imágenes sueltas ya registradas
+  IdentityHashMap<PImage, Integer> ids;
+
+  // Constructor
+  SpriteSheet() {
+    sprites = new PImage[64];
+    count = 0;
+    ids = new IdentityHashMap<PImage, Integer>();
+  }
+
+  // Registra una imagen (una sola vez) y devuelve su identificador
+  int register(PImage image) {
+    Integer id = ids.get(image);
+    if (id == null) {
+      id = append(image);
+      ids.put(image, id);
+    }
+    return id;
+  }
+
+  // Registra todos los fotogramas de una animación con identificadores consecutivos,
+  // de manera que el fotograma 'i' tenga el identificador spriteBase + i
+  void register(Animation animation) {
+    animation.spriteBase = count;
+    for (PImage frame : animation.frames) {
+      append(frame);
+    }
+  }
+
+  private int append(PImage image) {
+    if (count == sprites.length) sprites = Arrays.copyOf(sprites, count * 2);
+    sprites[count] = image;
+    return count++;
+  }
+
+  // Devuelve la imagen asociada a un identificador
+  PImage get(int id) {
+    return sprites[id];
+  }
+}
+
+/*
+  Lista de comandos de pintado de un fotograma. Cada comando ocupa STRIDE enteros
+  consecutivos: operación, x, y y cinco parámetros cuyo significado depende de la
+  operación. Los comandos no dependen del estado de la superficie (colores, grosor),
+  cada uno lleva todo lo necesario para pintarse. El orden de la lista es el orden
+  de pintado, de atrás hacia delante.
+ */
+class DrawCommands {
+  // Imagen: a = sprite, b = tinte (NO_TINT para ninguno)
+  final static int IMAGE = 0;
+  // Línea hasta (a, b): c = color, d = grosor
+  final static int LINE = 1;
+  // Círculo: a = diámetro, c = relleno, d = borde, e = grosor
+  final static int CIRCLE = 2;
+  // Semióvalo: a = ancho, b = alto, c = relleno, d = 0 mitad inferior, 1 mitad superior
+  final static int ARC = 3;
+  // Rectángulo: a = ancho, b = alto, c = relleno, d = borde, e = grosor
+  final static int RECT = 4;
+  // Texto: el texto se guarda aparte, b = tamaño, c = relleno, d = alineación
+  final static int TEXT = 5;
+  // Enteros por comando
+  final static int STRIDE = 8;
+  // Color transparente, equivale a noFill()/noStroke()
+  final static int NONE = 0;
+  // Tinte nulo (blanco opaco)
+  final static int NO_TINT = 0xFFFFFFFF;
+
+  // Datos de los comandos
+  int[] data;
+  // Textos de los comandos TEXT, indexados por comando
+  String[] text;
+  // Número de comandos
+  int count;
+
+  // Constructor
+  DrawCommands() {
+    data = new int[256 * STRIDE];
+    text = new String[256];
+    count = 0;
+  }
+
+  // Vacía la lista para grabar un nuevo fotograma
+  void clear() {
+    count = 0;
+  }
+
+  // Añade un comando y devuelve su desplazamiento en data[]
+  private int add(int op, int x, int y, int a, int b, int c, int d, int e) {
+    if (count == text.length) {
+      data = Arrays.copyOf(data, data.length * 2);
+      text = Arrays.copyOf(text, text.length * 2);
+    }
+    int o = count * STRIDE;
+    data[o] = op;
+    data[o+1] = x;
+    data[o+2] = y;
+    data[o+3] = a;
+    data[o+4] = b;
+    data[o+5] = c;
+    data[o+6] = d;
+    data[o+7] = e;
+    count++;
+    return o;
+  }
+
+  void image(int sprite, int x, int y, int tint) {
+    add(IMAGE, x, y, sprite, tint, 0, 0, 0);
+  }
+
+  void line(int x1, int y1, int x2, int y2, int stroke, int weight) {
+    add(LINE, x1, y1, x2, y2, stroke, weight, 0);
+  }
+
+  void circle(int x, int y, int diameter, int fill, int stroke, int weight) {
+    add(CIRCLE, x, y, diameter, 0, fill, stroke, weight);
+  }
+
+  void arc(int x, int y, int w, int h, int fill, boolean upper) {
+    add(ARC, x, y, w, h, fill, upper ? 1 : 0, 0);
+  }
+
+  void rect(int x, int y, int w, int h, int fill, int stroke, int weight) {
+    add(RECT, x, y, w, h, fill, stroke, weight);
+  }
+
+  void text(String s, int x, int y, int size, int fill, int align) {
+    // Primero el comando: add() es quien hace crecer los arrays
+    int o = add(TEXT, x, y, 0, size, fill, align, 0);
+    text[o / STRIDE] = s;
+  }
+
+  // Reproduce todos los comandos sobre una superficie que ya debe estar entre beginDraw() y endDraw()
+  void replay(PGraphics g, SpriteSheet sprites) {
+    for (int i=0; i<count; i++) {
+      replay(g, sprites, i);
+    }
+  }
+
+  // Devuelve la coordenada y superior (incluida) del área que ocupa el comando 'i'
+  int top(int i, SpriteSheet sprites) {
+    int o = i * STRIDE;
+    int y = data[o+2];
+    switch(data[o]) {
+    case LINE:
+      return min(y, data[o+4]) - data[o+6];
+    case CIRCLE:
+      return y - data[o+3]/2 - data[o+7];
+    case ARC:
+      return y - data[o+4]/2;
+    case RECT:
+      return y - data[o+7];
+    case TEXT:
+      return y - data[o+4];
+    }
+    return y;
+  }
+
+  // Devuelve la coordenada y inferior (excluida) del área que ocupa el comando 'i'
+  int bottom(int i, SpriteSheet sprites) {
+    int o = i * STRIDE;
+    int y = data[o+2];
+    switch(data[o]) {
+    case IMAGE:
+      return y + sprites.get(data[o+3]).height;
+    case LINE:
+      return max(y, data[o+4]) + data[o+6] + 1;
+    case CIRCLE:
+      return y + data[o+3]/2 + data[o+7] + 1;
+    case ARC:
+      return y + data[o+4]/2 + 1;
+    case RECT:
+      return y + data[o+4] + data[o+7] + 1;
+    case TEXT:
+      return y + data[o+4]/2;
+    }
+    return y + 1;
+  }
+
+  // Reproduce el comando 'i' sobre una superficie
+  void replay(PGraphics g, SpriteSheet sprites, int i) {
+    int o = i * STRIDE;
+    int x = data[o+1], y = data[o+2], a = data[o+3], b = data[o+4], c = data[o+5], d = data[o+6], e = data[o+7];
+    switch(data[o]) {
+    case IMAGE:
+      if (b != NO_TINT) g.tint(b);
+      g.image(sprites.get(a), x, y);
+      if (b != NO_TINT) g.noTint();
+      break;
+    case LINE:
+      g.strokeWeight(d);
+      g.stroke(c);
+      g.line(x, y, a, b);
+      break;
+    case CIRCLE:
+      setStyle(g, c, d, e);
+      g.circle(x, y, a);
+      break;
+    case ARC:
+      setStyle(g, c, NONE, 0);
+      if (d == 0) {
+        g.arc(x, y, a, b, 0, PI);
+      } else {
+        g.arc(x, y, a, b, PI, PI*2);
+      }
+      break;
+    case RECT:
+      setStyle(g, c, d, e);
+      g.rect(x, y, a, b);
+      break;
+    case TEXT:
+      g.textSize(b);
+      g.fill(c);
+      g.textAlign(d);
+      g.text(text[i], x, y);
+      g.textAlign(LEFT);
+      break;
+    }
+  }
+
+  // Establece relleno, borde y grosor, interpretando NONE como ausencia
+  private void setStyle(PGraphics g, int fill, int stroke, int weight) {
+    if (fill == NONE) g.noFill();
+    else g.fill(fill);
+    if (stroke == NONE) {
+      g.noStroke();
+    } else {
+      g.stroke(stroke);
+      g.strokeWeight(weight);
+    }
+  }
+}
+
+/*
+  Hilo de pintado con doble buffer. Mientras el hilo de animación simula el
+  fotograma N+1, este hilo reproduce la lista de comandos del fotograma N sobre
+  una de las dos superficies. La otra superficie contiene el último fotograma
+  completo, y es la que se publica para volcarla en pantalla.
+ */
+class RenderPipeline implements Runnable {
+  // Superficies de dibujo, una por buffer
+  PGraphics[] surfaces;
+  // Listas de comandos, una por buffer
+  DrawCommands[] buffers;
+  // Registro de imágenes referenciadas por los comandos
+  SpriteSheet sprites;
+  // Rasterizador con el que se pintan los fotogramas
+  Rasterizer rasterizer;
+  // Índice del buffer que se ha enviado (o se enviará) al hilo de pintado
+  int current;
+  // Última superficie terminada
+  PGraphics front;
+  // Se libera al enviar un fotograma
+  Semaphore submitted;
+  // Se libera al terminar de pintar un fotograma
+  Semaphore finished;
+  // Tiempo empleado en pintar el último fotograma, en nanosegundos
+  volatile long lastRasterNanos;
+  volatile boolean running;
+  Thread thread;
+
+  // Constructor. 'initial' es la superficie publicada hasta que se termine el primer fotograma
+  RenderPipeline(PGraphics initial, PGraphics spare, SpriteSheet sprites, Rasterizer rasterizer) {
+    this.rasterizer = rasterizer;
+    this.surfaces = new PGraphics[]{initial, spare};
+    this.buffers = new DrawCommands[]{new DrawCommands(), new DrawCommands()};
+    this.sprites = sprites;
+    this.current = 0;
+    this.front = initial;
+    this.submitted = new Semaphore(0);
+    this.finished = new Semaphore(1);
+  }
+
+  // Arranca el hilo de pintado
+  void start() {
+    running = true;
+    thread = new Thread(this, "RenderPipeline");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  // Espera a que el hilo termine el fotograma en curso y devuelve la última superficie completa.
+  // Cada llamada debe ir seguida de submit()
+  PGraphics awaitFrame() {
+    finished.acquireUninterruptibly();
+    return front;
+  }
+
+  // Devuelve la lista de comandos vacía en la que grabar el siguiente fotograma
+  DrawCommands nextBuffer() {
+    DrawCommands buffer = buffers[1-current];
+    buffer.clear();
+    return buffer;
+  }
+
+  // Envía al hilo de pintado el fotograma grabado en nextBuffer()
+  void submit() {
+    current = 1-current;
+    submitted.release();
+  }
+
+  // Bucle del hilo de pintado
+  public void run() {
+    while (true) {
+      submitted.acquireUninterruptibly();
+      if (!running) break;
+      long start = System.nanoTime();
+      PGraphics g = surfaces[current];
+      g.beginDraw();
+      rasterizer.rasterize(buffers[current], sprites, g);
+      g.endDraw();
+      lastRasterNanos = System.nanoTime() - start;
+      front = g;
+      finished.release();
+    }
+  }
+
+  // Detiene el hilo y devuelve la última superficie completa
+  PGraphics stop() {
+    PGraphics last = awaitFrame();
+    running = false;
+    submitted.release();
+    try {
+      thread.join();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return last;
+  }
+}
+
+/*
+  Un rasterizador convierte una lista de comandos en pixeles sobre una superficie,
+  que debe estar entre beginDraw() y endDraw()
+ */
+interface Rasterizer {
+  void rasterize(DrawCommands commands, SpriteSheet sprites, PGraphics target);
+}
+
+/*
+  Rasterizador por defecto: reproduce los comandos con Java2D sobre la superficie
+ */
+class Java2DRasterizer implements Rasterizer {
+  public void rasterize(DrawCommands commands, SpriteSheet sprites, PGraphics target) {
+    commands.replay(target, sprites);
+  }
+}
+
+/*
+  Rasterizador por franjas. La superficie se divide en franjas horizontales, cada una
+  con su propia superficie Java2D. Cada franja reproduce solo los comandos que la tocan,
+  desplazados para que su parte de la pantalla caiga dentro, y todas se pintan en
+  paralelo en un ForkJoinPool. Al terminar, las filas de cada franja se copian a su
+  sitio en pixels[] de la superficie destino. Como las franjas son filas completas,
+  la composición es una única copia por franja.
+ */
+class StripRasterizer implements Rasterizer {
+  // Número de franjas
+  int strips;
+  // Alto de cada franja (la última puede ser menor)
+  int stripHeight;
+  // Superficies de cada franja
+  PGraphics[] surfaces;
+  // Índices de los comandos que toca cada franja, y cuántos son
+  int[][] lists;
+  int[] listSizes;
+  // Pool de hilos en el que se pintan las franjas
+  ForkJoinPool pool;
+
+  // Constructor
+  StripRasterizer(int strips) {
+    this.strips = max(1, strips);
+    this.pool = new ForkJoinPool(this.strips);
+  }
+
+  // Crea las superficies de las franjas la primera vez, o si cambia el tamaño
+  private void prepare(PGraphics target) {
+    int h = (target.height + strips - 1) / strips;
+    if (surfaces != null && h == stripHeight && surfaces[0].width == target.width) return;
+    stripHeight = h;
+    surfaces = new PGraphics[strips];
+    lists = new int[strips][256];
+    listSizes = new int[strips];
+    for (int s=0; s<strips; s++) {
+      surfaces[s] = createGraphics(target.width, min(stripHeight, target.height - s*stripHeight));
+    }
+  }
+
+  public void rasterize(final DrawCommands commands, final SpriteSheet sprites, final PGraphics target) {
+    prepare(target);
+
+    // Repartimos los comandos entre las franjas que tocan, respetando el orden
+    for (int s=0; s<strips; s++) listSizes[s] = 0;
+    for (int i=0; i<commands.count; i++) {
+      int first = max(0, commands.top(i, sprites) / stripHeight);
+      int last = min(strips-1, (commands.bottom(i, sprites) - 1) / stripHeight);
+      for (int s=first; s<=last; s++) {
+        if (listSizes[s] == lists[s].length) lists[s] = Arrays.copyOf(lists[s], listSizes[s] * 2);
+        lists[s][listSizes[s]++] = i;
+      }
+    }
+
+    // Pintamos todas las franjas en paralelo
+    pool.invoke(new StripTask(commands, sprites, 0, strips));
+
+    // Componemos el resultado copiando cada franja a su posición
+    if (target.pixels == null) target.loadPixels();
+    for (int s=0; s<strips; s++) {
+      PGraphics strip = surfaces[s];
+      System.arraycopy(strip.pixels, 0, target.pixels, s * stripHeight * target.width, strip.width * strip.height);
+    }
+    target.updatePixels();
+  }
+
+  // Pinta una franja con sus comandos
+  private void rasterizeStrip(DrawCommands commands, SpriteSheet sprites, int s) {
+    PGraphics strip = surfaces[s];
+    strip.beginDraw();
+    strip.translate(0, -s * stripHeight);
+    int[] list = lists[s];
+    for (int n=0; n<listSizes[s]; n++) {
+      commands.replay(strip, sprites, list[n]);
+    }
+    // endDraw() deja el resultado en strip.pixels
+    strip.endDraw();
+  }
+
+  // Tarea que divide el rango de franjas en dos hasta quedarse con una
+  class StripTask extends RecursiveAction {
+    // RecursiveAction es serializable; las tareas nunca se serializan
+    private final static long serialVersionUID = 1L;
+
+    DrawCommands commands;
+    SpriteSheet sprites;
+    int from, to;
+
+    StripTask(DrawCommands commands, SpriteSheet sprites, int from, int to) {
+      this.commands = commands;
+      this.sprites = sprites;
+      this.from = from;
+      this.to = to;
+    }
+
+    protected void compute() {
+      if (to - from == 1) {
+        rasterizeStrip(commands, sprites, from);
+      } else {
+        int mid = (from + to) / 2;
+        invokeAll(new StripTask(commands, sprites, from, mid), new StripTask(commands, sprites, mid, to));
+      }
+    }
+  }
+}
+
+/*
+  Blitter de sprites sobre arrays de pixeles. Al registrar cada sprite se precalculan
+  sus pixeles con el alfa premultiplicado y, para cada fila, los tramos (spans) de
+  pixeles visibles, clasificados en opacos y translúcidos. Los pixeles transparentes
+  no se recorren nunca, los tramos opacos se copian con System.arraycopy y solo los
+  translúcidos se mezclan pixel a pixel. Un sprite con alfa de 1 bit (todo opaco o
+  transparente) se pinta solo con copias.
+ */
+class Blitter {
+  // Tipos de tramo
+  final static int SPAN_OPAQUE = 0;
+  final static int SPAN_ALPHA = 1;
+
+  // Pixeles premultiplicados de cada sprite
+  int[][] premultiplied;
+  // Tramos de cada sprite. Para cada fila: número de tramos y, por cada uno, x, longitud y tipo
+  int[][] spans;
+  // Posición en spans[] donde empieza cada fila
+  int[][] rows;
+  // Número de sprites preparados
+  int prepared;
+
+  // Constructor
+  Blitter() {
+    premultiplied = new int[0][];
+    spans = new int[0][];
+    rows = new int[0][];
+    prepared = 0;
+  }
+
+  // Precalcula los datos de todos los sprites registrados que aún no lo estén
+  void prepare(SpriteSheet sheet) {
+    if (prepared == sheet.count) return;
+    premultiplied = Arrays.copyOf(premultiplied, sheet.count);
+    spans = Arrays.copyOf(spans, sheet.count);
+    rows = Arrays.copyOf(rows, sheet.count);
+    for (int id=prepared; id<sheet.count; id++) {
+      prepare(id, sheet.get(id));
+    }
+    prepared = sheet.count;
+  }
+
+  // Precalcula los pixeles premultiplicados y los tramos de un sprite
+  private void prepare(int id, PImage image) {
+    image.loadPixels();
+    int w = image.width, h = image.height;
+    int[] src = image.pixels;
+    int[] pre = new int[w*h];
+    int[] rowStart = new int[h];
+    int[] list = new int[64];
+    int size = 0;
+    // Las imágenes RGB no tienen canal alfa, todos sus pixeles son opacos
+    boolean hasAlpha = image.format == ARGB;
+
+    for (int y=0; y<h; y++) {
+      rowStart[y] = size;
+      // Reservamos la posición del contador de tramos de la fila
+      if (size + 1 >= list.length) list = Arrays.copyOf(list, list.length * 2);
+      int countPos = size++;
+      int spanCount = 0;
+      int x = 0;
+      while (x < w) {
+        int a = hasAlpha ? src[y*w+x] >>> 24 : 255;
+        if (a == 0) {
+          pre[y*w+x] = 0;
+          x++;
+          continue;
+        }
+        int type = a == 255 ? SPAN_OPAQUE : SPAN_ALPHA;
+        int start = x;
+        while (x < w) {
+          int p = src[y*w+x];
+          int pa = hasAlpha ? p >>> 24 : 255;
+          if (pa == 0 || (pa == 255 ? SPAN_OPAQUE : SPAN_ALPHA) != type) break;
+          pre[y*w+x] = premultiply(p, pa);
+          x++;
+        }
+        if (size + 3 >= list.length) list = Arrays.copyOf(list, list.length * 2);
+        list[size++] = start;
+        list[size++] = x - start;
+        list[size++] = type;
+        spanCount++;
+      }
+      list[countPos] = spanCount;
+    }
+
+    premultiplied[id] = pre;
+    spans[id] = Arrays.copyOf(list, size);
+    rows[id] = rowStart;
+  }
+
+  // Multiplica los canales de color de un pixel por su alfa
+  private int premultiply(int p, int a) {
+    if (a == 255) return p | 0xFF000000;
+    return (a << 24) | (mul255((p >> 16) & 0xFF, a) << 16) | (mul255((p >> 8) & 0xFF, a) << 8) | mul255(p & 0xFF, a);
+  }
+
+  // Calcula a*b/255 con redondeo, sin divisiones
+  private int mul255(int a, int b) {
+    int t = a * b + 128;
+    return (t + (t >> 8)) >> 8;
+  }
+
+  // Mezcla un pixel premultiplicado sobre el destino (operador "over")
+  private int blend(int s, int d) {
+    int ia = 255 - (s >>> 24);
+    return ((s >>> 24) + mul255(d >>> 24, ia)) << 24
+      | (((s >> 16) & 0xFF) + mul255((d >> 16) & 0xFF, ia)) << 16
+      | (((s >> 8) & 0xFF) + mul255((d >> 8) & 0xFF, ia)) << 8
+      | ((s & 0xFF) + mul255(d & 0xFF, ia));
+  }
+
+  // Aplica un tinte ARGB a un pixel premultiplicado
+  private int applyTint(int s, int ta, int tr, int tg, int tb) {
+    int a = mul255(s >>> 24, ta);
+    int r = mul255(mul255((s >> 16) & 0xFF, tr), ta);
+    int g = mul255(mul255((s >> 8) & 0xFF, tg), ta);
+    int b = mul255(mul255(s & 0xFF, tb), ta);
+    return (a << 24) | (r << 16) | (g << 8) | b;
+  }
+
+  // Pinta el sprite 'id' en (x, y) sobre un destino de dw x dh pixeles, con un tinte opcional
+  void blit(int[] dst, int dw, int dh, int id, int x, int y, int tint) {
+    int[] pre = premultiplied[id];
+    int[] list = spans[id];
+    int[] rowStart = rows[id];
+    int sw = pre.length / rowStart.length;
+    int sh = rowStart.length;
+    boolean tinted = tint != DrawCommands.NO_TINT;
+    int ta = tint >>> 24, tr = (tint >> 16) & 0xFF, tg = (tint >> 8) & 0xFF, tb = tint & 0xFF;
+    // Con un tinte totalmente transparente no hay nada que pintar
+    if (tinted && ta == 0) return;
+
+    // Recortamos las filas a la superficie destino
+    int fromRow = max(0, -y);
+    int toRow = min(sh, dh - y);
+    for (int sy=fromRow; sy<toRow; sy++) {
+      int o = rowStart[sy];
+      int n = list[o++];
+      int srcRow = sy * sw;
+      int dstRow = (y + sy) * dw;
+      for (int k=0; k<n; k++, o+=3) {
+        // Recortamos el tramo horizontalmente
+        int sx = list[o];
+        int len = list[o+1];
+        int dx = x + sx;
+        if (dx < 0) {
+          sx -= dx;
+          len += dx;
+          dx = 0;
+        }
+        if (dx + len > dw) len = dw - dx;
+        if (len <= 0) continue;
+
+        int si = srcRow + sx;
+        int di = dstRow + dx;
+        if (tinted) {
+          for (int i=0; i<len; i++) {
+            dst[di+i] = blend(applyTint(pre[si+i], ta, tr, tg, tb), dst[di+i]);
+          }
+        } else if (list[o+2] == SPAN_OPAQUE) {
+          System.arraycopy(pre, si, dst, di, len);
+        } else {
+          for (int i=0; i<len; i++) {
+            dst[di+i] = blend(pre[si+i], dst[di+i]);
+          }
+        }
+      }
+    }
+  }
+}
+
+/*
+  Rasterizador que pinta los sprites con el Blitter directamente sobre el array de
+  pixeles de la superficie, y delega el resto de primitivas (líneas, arcos, texto)
+  en Java2D. Ambos escriben sobre el mismo array, por lo que pueden intercalarse
+  sin sincronizaciones.
+ */
+class BlitterRasterizer implements Rasterizer {
+  Blitter blitter = new Blitter();
+
+  public void rasterize(DrawCommands commands, SpriteSheet sprites, PGraphics target) {
+    int[] dst = getSurfacePixels(target);
+    if (dst == null) {
+      // La superficie no expone sus pixeles, pintamos con Java2D
+      commands.replay(target, sprites);
+      return;
+    }
+    blitter.prepare(sprites);
+    for (int i=0; i<commands.count; i++) {
+      int o = i * DrawCommands.STRIDE;
+      if (commands.data[o] == DrawCommands.IMAGE) {
+        blitter.blit(dst, target.width, target.height, commands.data[o+3], commands.data[o+1], commands.data[o+2], commands.data[o+4]);
+      } else {
+        commands.replay(target, sprites, i);
+      }
+    }
+  }
+}
+
+/*
+  Compositor de los fundidos de las transiciones. Trabaja directamente sobre los
+  arrays de pixeles de las superficies: en cada fotograma calcula, para el nivel de
+  fundido actual, una tabla con el valor escalado de cada intensidad (0-255), y
+  cada pixel del resultado se obtiene con tres consultas a las tablas y una suma.
+  Las filas se reparten en bandas que se procesan en paralelo.
+ */
+class FadeCompositor {
+  // Número mínimo de pixeles de una banda; por debajo no compensa repartir el trabajo
+  final static int MIN_BAND = 32 * 1024;
+
+  // Pool de hilos en el que se procesan las bandas
+  ForkJoinPool pool;
+  // Tablas de escalado del fotograma: lutA para la primera imagen, lutB para la segunda
+  // (o un color constante en los fundidos a negro o blanco)
+  int[] lutA, lutB;
+
+  // Constructor
+  FadeCompositor(int threads) {
+    pool = new ForkJoinPool(max(1, threads));
+    lutA = new int[256];
+    lutB = new int[256];
+  }
+
+  // Calcula t*b/255 con redondeo, sin divisiones
+  private int mul255(int a, int b) {
+    int t = a * b + 128;
+    return (t + (t >> 8)) >> 8;
+  }
+
+  // Funde 'src' hacia un color gris uniforme ('towards', 0 = negro, 255 = blanco).
+  // Con level = 0 el resultado es src, con level = 255 es el color
+  void fade(int[] src, int[] dst, int length, int towards, int level) {
+    level = constrain(level, 0, 255);
+    int constant = mul255(towards, level);
+    for (int v=0; v<256; v++) {
+      lutA[v] = mul255(v, 255 - level);
+      lutB[v] = constant;
+    }
+    run(src, null, dst, length);
+  }
+
+  // Mezcla 'a' y 'b'. Con level = 0 el resultado es a, con level = 255 es b
+  void blend(int[] a, int[] b, int[] dst, int length, int level) {
+    level = constrain(level, 0, 255);
+    for (int v=0; v<256; v++) {
+      lutA[v] = mul255(v, 255 - level);
+      lutB[v] = mul255(v, level);
+    }
+    run(a, b, dst, length);
+  }
+
+  private void run(int[] a, int[] b, int[] dst, int length) {
+    if (length <= MIN_BAND || pool.getParallelism() == 1) {
+      composite(a, b, dst, 0, length);
+    } else {
+      pool.invoke(new BandTask(a, b, dst, 0, length));
+    }
+  }
+
+  // Compone el rango [from, to) de pixeles
+  private void composite(int[] a, int[] b, int[] dst, int from, int to) {
+    int[] la = lutA, lb = lutB;
+    if (b == null) {
+      int k = lb[0];
+      for (int i=from; i<to; i++) {
+        int p = a[i];
+        dst[i] = 0xFF000000 | (la[(p >> 16) & 0xFF] + k) << 16 | (la[(p >> 8) & 0xFF] + k) << 8 | (la[p & 0xFF] + k);
+      }
+    } else {
+      for (int i=from; i<to; i++) {
+        int p = a[i], q = b[i];
+        dst[i] = 0xFF000000 | (la[(p >> 16) & 0xFF] + lb[(q >> 16) & 0xFF]) << 16 | (la[(p >> 8) & 0xFF] + lb[(q >> 8) & 0xFF]) << 8 | (la[p & 0xFF] + lb[q & 0xFF]);
+      }
+    }
+  }
+
+  // Tarea que divide el rango de pixeles en dos hasta llegar al tamaño mínimo de banda
+  class BandTask extends RecursiveAction {
+    private final static long serialVersionUID = 1L;
+
+    int[] a, b, dst;
+    int from, to;
+
+    BandTask(int[] a, int[] b, int[] dst, int from, int to) {
+      this.a = a;
+      this.b = b;
+      this.dst = dst;
+      this.from = from;
+      this.to = to;
+    }
+
+    protected void compute() {
+      if (to - from <= MIN_BAND) {
+        composite(a, b, dst, from, to);
+      } else {
+        int mid = (from + to) >>> 1;
+        invokeAll(new BandTask(a, b, dst, from, mid), new BandTask(a, b, dst, mid, to));
+      }
+    }
+  }
+}
@@ -0,0 +1,228 @@
+//
+// INSTANTÁNEAS DEL ESTADO DEL JUEGO
+//
+// El estado completo de una partida se puede volcar en un StateBuffer, un array
+// plano de enteros en el que cada almacén escribe sus componentes uno detrás de
+// otro (los float se guardan con sus bits y los long en dos enteros). No se copia
+// ningún grafo de objetos: guardar o restaurar una partida son unas pocas copias
+// de arrays de primitivos, del orden de microsegundos.
+//
+// Sobre estas instantáneas se construye el rebobinado: un anillo de buffers
+// reservados de antemano que guarda los últimos segundos de juego. También las
+// partidas guardadas, que son una instantánea volcada a disco tal cual:
+//
+//   int   magia 'TRKY'
+//   int   versión
+//   int   número de enteros de la instantánea
+//   int[] instantánea, en big endian
+//
+// Si cambia lo que escribe cualquier saveState() hay que incrementar
+// SAVE_VERSION; las partidas de otra versión se descartan.
+
+// Identificador de las partidas guardadas
+final static int SAVE_MAGIC = 0x54524B59;
+// Versión del formato de las instantáneas
+final static int SAVE_VERSION = 1;
+// Tamaño de la cabecera en bytes
+final static int SAVE_HEADER_SIZE = 12;
+
+/*
+  Array plano de enteros en el que se escribe y se lee el estado de forma secuencial
+ */
+class StateBuffer {
+  // Contenido
+  int[] data;
+  // Número de enteros escritos
+  int length;
+  // Posición de lectura
+  int position;
+
+  StateBuffer(int capacity) {
+    data = new int[capacity];
+  }
+
+  // Vacía el buffer para empezar a escribir
+  void clear() {
+    length = 0;
+    position = 0;
+  }
+
+  // Vuelve al principio para empezar a leer
+  void rewind() {
+    position = 0;
+  }
+
+  // Se asegura de que caben 'n' enteros más. Solo reserva memoria si el estado ha crecido
+  void ensure(int n) {
+    if (length + n > data.length) data = Arrays.copyOf(data, max(length + n, data.length * 2));
+  }
+
+  void putInt(int value) {
+    ensure(1);
+    data[length++] = value;
+  }
+
+  void putLong(long value) {
+    ensure(2);
+    data[length++] = (int)(value >>> 32);
+    data[length++] = (int)value;
+  }
+
+  void putFloat(float value) {
+    putInt(Float.floatToRawIntBits(value));
+  }
+
+  void putBoolean(boolean value) {
+    putInt(value ? 1 : 0);
+  }
+
+  void putInts(int[] values, int n) {
+    ensure(n);
+    System.arraycopy(values, 0, data, length, n);
+    length += n;
+  }
+
+  void putLongs(long[] values, int n) {
+    ensure(2*n);
+    for (int i=0; i<n; i++) {
+      data[length++] = (int)(values[i] >>> 32);
+      data[length++] = (int)values[i];
+    }
+  }
+
+  void putFloats(float[] values, int n) {
+    ensure(n);
+    for (int i=0; i<n; i++) data[length++] = Float.floatToRawIntBits(values[i]);
+  }
+
+  void putBooleans(boolean[] values, int n) {
+    ensure(n);
+    for (int i=0; i<n; i++) data[length++] = values[i] ? 1 : 0;
+  }
+
+  int getInt() {
+    return data[position++];
+  }
+
+  long getLong() {
+    long high = data[position++];
+    return (high << 32) | (data[position++] & 0xFFFFFFFFL);
+  }
+
+  float getFloat() {
+    return Float.intBitsToFloat(getInt());
+  }
+
+  boolean getBoolean() {
+    return getInt() != 0;
+  }
+
+  void getInts(int[] values, int n) {
+    System.arraycopy(data, position, values, 0, n);
+    position += n;
+  }
+
+  void getLongs(long[] values, int n) {
+    for (int i=0; i<n; i++) values[i] = getLong();
+  }
+
+  void getFloats(float[] values, int n) {
+    for (int i=0; i<n; i++) values[i] = Float.intBitsToFloat(data[position++]);
+  }
+
+  void getBooleans(boolean[] values, int n) {
+    for (int i=0; i<n; i++) values[i] = data[position++] != 0;
+  }
+}
+
+/*
+  Anillo con las últimas instantáneas de la partida, de la más antigua a la más
+  reciente. Los buffers se reservan al crearlo y se reutilizan, de manera que la
+  memoria está acotada y guardar un tick no reserva nada
+ */
+class RewindBuffer {
+  StateBuffer[] slots;
+  // Posición de la próxima instantánea
+  int head;
+  // Instantáneas guardadas
+  int size;
+
+  // 'capacity' instantáneas, cada una con espacio inicial para 'stateSize' enteros
+  RewindBuffer(int capacity, int stateSize) {
+    slots = new StateBuffer[capacity];
+    for (int i=0; i<capacity; i++) slots[i] = new StateBuffer(stateSize);
+  }
+
+  // Devuelve el buffer, ya vacío, en el que escribir una nueva instantánea. Si el
+  // anillo está lleno se sobrescribe la más antigua
+  StateBuffer push() {
+    StateBuffer slot = slots[head];
+    head = (head + 1) % slots.length;
+    size = min(size + 1, slots.length);
+    slot.clear();
+    return slot;
+  }
+
+  // Saca la instantánea más reciente, preparada para leer, o null si no queda ninguna
+  StateBuffer pop() {
+    if (size == 0) return null;
+    head = (head - 1 + slots.length) % slots.length;
+    size--;
+    StateBuffer slot = slots[head];
+    slot.rewind();
+    return slot;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  void clear() {
+    head = 0;
+    size = 0;
+  }
+}
+
+// Escribe una instantánea en un fichero. Se escribe primero en un temporal y después
+// se sustituye el original, de manera que un fallo a medias no deja un fichero corrupto
+void writeStateFile(Path path, StateBuffer state) throws IOException {
+  Files.createDirectories(path.toAbsolutePath().getParent());
+  ByteBuffer buffer = ByteBuffer.allocateDirect(SAVE_HEADER_SIZE + state.length * 4);
+  buffer.putInt(SAVE_MAGIC).putInt(SAVE_VERSION).putInt(state.length);
+  buffer.asIntBuffer().put(state.data, 0, state.length);
+  buffer.clear();
+
+  Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+  FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+  try {
+    while (buffer.hasRemaining()) channel.write(buffer);
+    channel.force(false);
+  }
+  finally {
+    channel.close();
+  }
+  Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+}
+
+// Lee una instantánea de un fichero, dejándola preparada para leer. Devuelve false
+// si el fichero no es una partida guardada o es de otra versión
+boolean readStateFile(Path path, StateBuffer state) throws IOException {
+  FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+  ByteBuffer buffer;
+  try {
+    buffer = ByteBuffer.allocateDirect((int)channel.size());
+    while (buffer.hasRemaining() && channel.read(buffer) > 0);
+  }
+  finally {
+    channel.close();
+  }
+  buffer.flip();
+  if (buffer.remaining() < SAVE_HEADER_SIZE || buffer.getInt() != SAVE_MAGIC || buffer.getInt() != SAVE_VERSION) return false;
+  int length = buffer.getInt();
+  if (buffer.remaining() != length * 4) return false;
+  state.clear();
+  state.ensure(length);
+  buffer.asIntBuffer().get(state.data, 0, length);
+  state.length = length;
+  return true;
+}
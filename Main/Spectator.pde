@@ -0,0 +1,478 @@
+//
+// RETRANSMISIÓN A ESPECTADORES
+//
+// La partida se puede seguir desde otras pantallas sin ejecutar una copia del
+// juego. Un servidor NIO acepta cualquier número de espectadores y, en cada
+// tick, les envía lo que ha cambiado: el pavo y el marcador, las cerillas que
+// se prenden, las cerillas que entran por la derecha y los items que aparecen
+// o se recogen. El resto (el desplazamiento del terreno, la llama que se apaga,
+// el calor que pasa de una cerilla a otra) es determinista y el espectador lo
+// reproduce por su cuenta, de manera que su mundo es idéntico al de la partida
+// y se pinta con el código de pintado de GameStage.
+//
+// Al conectarse, y siempre que se pierda la sincronía, el espectador recibe un
+// fotograma clave con la instantánea completa de la partida (ver Snapshots).
+//
+// Cada fotograma va precedido de su longitud:
+//
+//   int  bytes que siguen
+//   byte SPECTATOR_KEYFRAME: long tiempo, int n, int[n] instantánea
+//        SPECTATOR_DELTA:    long tiempo, byte flags, marcador y pavo, eventos
+//
+// Los eventos se escriben en el orden en que ocurren en el tick, cada uno con
+// su etiqueta SPECTATOR_EVENT_*.
+//
+// El juego nunca espera a un espectador: cada uno tiene su cola de salida de
+// tamaño fijo. Si un espectador lento la llena, se dejan de encolar sus deltas y,
+// cuando la haya vaciado, recibe un fotograma clave y sigue desde ahí.
+
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+// Tipos de fotograma
+final static byte SPECTATOR_KEYFRAME = 1;
+final static byte SPECTATOR_DELTA = 2;
+// Eventos de un delta
+final static byte SPECTATOR_EVENT_COLLECT = 1;
+final static byte SPECTATOR_EVENT_IGNITE = 2;
+final static byte SPECTATOR_EVENT_MATCH = 3;
+final static byte SPECTATOR_EVENT_SPAWN = 4;
+final static byte SPECTATOR_EVENT_SPARK = 5;
+// Flags de un delta
+final static int SPECTATOR_STEPPED = 1;
+final static int SPECTATOR_DEAD = 2;
+final static int SPECTATOR_FLY = 4;
+// Tamaño máximo de un delta. Si un tick no cabe, se envía un fotograma clave
+final static int SPECTATOR_DELTA_SIZE = 16 * 1024;
+// Tamaño de la cola de salida de cada espectador
+final static int SPECTATOR_QUEUE_SIZE = 128 * 1024;
+// Tamaño de la cabecera de un fotograma: longitud y tipo
+final static int SPECTATOR_FRAME_HEADER = 5;
+// Posición de los eventos en un delta, tras el tiempo, los flags, el marcador y el pavo
+final static int SPECTATOR_DELTA_EVENTS = SPECTATOR_FRAME_HEADER + 9 + 57;
+
+/*
+  Servidor de espectadores. Se actualiza desde el bucle del juego sin bloquearlo
+  nunca: acepta conexiones, codifica el tick en un buffer reservado de antemano y
+  lo copia en la cola de cada espectador
+ */
+class SpectatorServer {
+  Selector selector;
+  ServerSocketChannel server;
+  List<SpectatorConnection> connections = new ArrayList<SpectatorConnection>();
+  // Delta del tick en curso
+  ByteBuffer delta = ByteBuffer.allocateDirect(SPECTATOR_DELTA_SIZE);
+  // Último fotograma clave codificado y la instantánea de la que sale
+  ByteBuffer keyframe = ByteBuffer.allocateDirect(SPECTATOR_FRAME_HEADER + 12 + 4 * 4096);
+  StateBuffer keyState = new StateBuffer(4096);
+  // El fotograma clave corresponde al estado actual de la partida
+  boolean keyframeReady;
+  // El tick en curso no cabe en un delta
+  boolean overflow;
+  // Buffer en el que se descarta lo que envían los espectadores
+  ByteBuffer discard = ByteBuffer.allocateDirect(256);
+
+  SpectatorServer(int port) throws IOException {
+    selector = Selector.open();
+    server = ServerSocketChannel.open();
+    server.socket().setReuseAddress(true);
+    server.socket().bind(new InetSocketAddress(port));
+    server.configureBlocking(false);
+    server.register(selector, SelectionKey.OP_ACCEPT);
+  }
+
+  // Empieza a codificar un tick. 'stepped' indica si el mundo avanza en él o solo el pavo
+  void begin(boolean stepped) {
+    delta.clear();
+    delta.position(SPECTATOR_FRAME_HEADER + 8);
+    delta.put((byte)(stepped ? SPECTATOR_STEPPED : 0));
+    // El marcador y el pavo se escriben al terminar el tick, les reservamos su sitio
+    delta.position(SPECTATOR_DELTA_EVENTS);
+    overflow = false;
+    keyframeReady = false;
+  }
+
+  // Eventos del tick en curso, en el orden en que ocurren
+  void collected(int e) {
+    if (!reserve(3)) return;
+    delta.put(SPECTATOR_EVENT_COLLECT).putShort((short)e);
+  }
+
+  void ignited(int c) {
+    if (!reserve(3)) return;
+    delta.put(SPECTATOR_EVENT_IGNITE).putShort((short)c);
+  }
+
+  void matchAdded(int x, int y, boolean noFire) {
+    if (!reserve(8)) return;
+    delta.put(SPECTATOR_EVENT_MATCH).putInt(x).putShort((short)y).put((byte)(noFire ? 1 : 0));
+  }
+
+  void spawned(int kind, long column, int x, int y) {
+    if (!reserve(18)) return;
+    delta.put(SPECTATOR_EVENT_SPAWN).put((byte)kind).putLong(column).putInt(x).putInt(y);
+  }
+
+  void sparked(int c) {
+    if (!reserve(3)) return;
+    delta.put(SPECTATOR_EVENT_SPARK).putShort((short)c);
+  }
+
+  private boolean reserve(int n) {
+    if (delta.remaining() < n) overflow = true;
+    return !overflow;
+  }
+
+  // Termina el tick: completa el delta con el estado del pavo y del marcador y lo
+  // encola para todos los espectadores
+  void end(GameStage stage) {
+    int length = delta.position();
+    delta.putInt(0, length - 4);
+    delta.put(4, SPECTATOR_DELTA);
+    delta.putLong(5, stage.getTimeElapsed());
+    int flags = delta.get(13);
+    if (stage.dead) flags |= SPECTATOR_DEAD;
+    if (stage.fly) flags |= SPECTATOR_FLY;
+    delta.put(13, (byte)flags);
+    delta.position(14);
+    delta.putLong(stage.score);
+    delta.putInt(stage.lifePoints);
+    delta.putInt(stage.pendingLifePoints);
+    delta.putInt(stage.powerPoints);
+    delta.putInt(stage.pendingPowerPoints);
+    delta.putLong(stage.lastHitTime);
+    delta.putFloat(stage.terrainSpeed);
+    delta.putInt(stage.turkey.position.x);
+    delta.putInt(stage.turkey.position.y);
+    delta.putInt(stage.turkeyColumn);
+    delta.put((byte)stage.turkey.getAnimationId());
+    delta.putLong(stage.turkey.animationStart);
+    delta.position(length);
+    delta.flip();
+    // Si el tick no cabía, todos los espectadores necesitan un fotograma clave
+    if (overflow) requestKeyframe();
+    broadcast(stage);
+  }
+
+  // Envía a todos los espectadores un fotograma clave en lugar del delta del tick. Se usa
+  // cuando el estado de la partida salta, al empezar una partida o al rebobinar
+  void keyframe(GameStage stage) {
+    delta.clear().flip();
+    keyframeReady = false;
+    requestKeyframe();
+    broadcast(stage);
+  }
+
+  void requestKeyframe() {
+    for (int i=0; i<connections.size(); i++) connections.get(i).stale = true;
+  }
+
+  // Encola el tick en cada espectador, acepta conexiones nuevas y envía lo que admita cada socket
+  private void broadcast(GameStage stage) {
+    accept();
+    for (int i=connections.size()-1; i>=0; i--) {
+      SpectatorConnection connection = connections.get(i);
+      ByteBuffer queue = connection.queue;
+      if (connection.stale) {
+        // Los espectadores desincronizados reciben un fotograma clave cuando han vaciado su cola
+        if (queue.position() == 0) {
+          encodeKeyframe(stage);
+          keyframe.rewind();
+          if (queue.remaining() >= keyframe.remaining()) {
+            queue.put(keyframe);
+            connection.stale = false;
+          }
+        }
+      } else if (delta.limit() > 0) {
+        delta.rewind();
+        if (queue.remaining() >= delta.remaining()) {
+          queue.put(delta);
+        } else {
+          // Espectador lento: descartamos sus deltas hasta que se ponga al día
+          connection.stale = true;
+          connection.dropped++;
+        }
+      }
+      if (!connection.flush()) {
+        connection.close();
+        connections.remove(i);
+      }
+    }
+  }
+
+  // Codifica la instantánea de la partida, una sola vez por tick aunque la pidan varios espectadores
+  private void encodeKeyframe(GameStage stage) {
+    if (keyframeReady) return;
+    keyState.clear();
+    stage.saveState(keyState);
+    int length = SPECTATOR_FRAME_HEADER + 12 + 4 * keyState.length;
+    if (keyframe.capacity() < length) keyframe = ByteBuffer.allocateDirect(length * 2);
+    keyframe.clear();
+    keyframe.putInt(length - 4).put(SPECTATOR_KEYFRAME);
+    keyframe.putLong(stage.getTimeElapsed()).putInt(keyState.length);
+    for (int i=0; i<keyState.length; i++) keyframe.putInt(keyState.data[i]);
+    keyframe.flip();
+    keyframeReady = true;
+  }
+
+  // Atiende las conexiones nuevas y las desconexiones. Solo recorre las claves si hay alguna lista
+  private void accept() {
+    try {
+      if (selector.selectNow() == 0) return;
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        if (key.isAcceptable()) {
+          SocketChannel channel = server.accept();
+          if (channel == null) continue;
+          channel.configureBlocking(false);
+          channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+          SpectatorConnection connection = new SpectatorConnection(channel);
+          channel.register(selector, SelectionKey.OP_READ, connection);
+          connections.add(connection);
+        } else if (key.isReadable()) {
+          // Los espectadores no envían nada; si la lectura termina es que se han desconectado
+          SpectatorConnection connection = (SpectatorConnection)key.attachment();
+          discard.clear();
+          if (connection.channel.read(discard) < 0) connection.closed = true;
+        }
+      }
+    }
+    catch (IOException e) {
+      println("spectator: " + e.getMessage());
+    }
+  }
+
+  int getConnectionCount() {
+    return connections.size();
+  }
+
+  void close() {
+    for (SpectatorConnection connection : connections) connection.close();
+    connections.clear();
+    try {
+      server.close();
+      selector.close();
+    }
+    catch (IOException e) {
+      println("spectator: " + e.getMessage());
+    }
+  }
+}
+
+/*
+  Un espectador conectado y su cola de salida
+ */
+class SpectatorConnection {
+  SocketChannel channel;
+  ByteBuffer queue = ByteBuffer.allocateDirect(SPECTATOR_QUEUE_SIZE);
+  // Se han descartado deltas y necesita un fotograma clave
+  boolean stale = true;
+  // Se ha desconectado
+  boolean closed;
+  // Veces que se ha quedado atrás
+  int dropped;
+
+  SpectatorConnection(SocketChannel channel) {
+    this.channel = channel;
+  }
+
+  // Envía lo que admita el socket sin bloquear. Devuelve false si la conexión se ha perdido
+  boolean flush() {
+    if (closed) return false;
+    if (queue.position() == 0) return true;
+    try {
+      queue.flip();
+      channel.write(queue);
+      queue.compact();
+      return true;
+    }
+    catch (IOException e) {
+      return false;
+    }
+  }
+
+  void close() {
+    try {
+      channel.close();
+    }
+    catch (IOException e) {
+      println("spectator: " + e.getMessage());
+    }
+  }
+}
+
+/*
+  Lado del espectador: recibe los fotogramas y los aplica a una GameStage que no
+  simula, solo reproduce lo que le llega y lo pinta
+ */
+class SpectatorClient {
+  SocketChannel channel;
+  ByteBuffer incoming = ByteBuffer.allocateDirect(SPECTATOR_QUEUE_SIZE);
+  StateBuffer state = new StateBuffer(4096);
+  // Se ha recibido el primer fotograma clave
+  boolean synced;
+  boolean closed;
+
+  SpectatorClient(String host, int port, int timeout) throws IOException {
+    channel = SocketChannel.open();
+    channel.socket().connect(new InetSocketAddress(host, port), timeout);
+    channel.configureBlocking(false);
+    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+  }
+
+  // Aplica a la etapa todos los fotogramas completos recibidos. Devuelve true si ha cambiado
+  boolean update(GameStage stage) {
+    if (closed) return false;
+    boolean changed = false;
+    try {
+      if (channel.read(incoming) < 0) throw new IOException("server disconnected");
+      incoming.flip();
+      while (incoming.remaining() >= 4 && incoming.remaining() >= 4 + incoming.getInt(incoming.position())) {
+        int end = incoming.position() + 4 + incoming.getInt();
+        byte type = incoming.get();
+        if (type == SPECTATOR_KEYFRAME) {
+          applyKeyframe(stage);
+        } else if (synced) {
+          applyDelta(stage, end);
+        }
+        incoming.position(end);
+        changed = true;
+      }
+      incoming.compact();
+    }
+    catch (IOException e) {
+      println("spectator: " + e.getMessage());
+      close();
+    }
+    return changed;
+  }
+
+  private void applyKeyframe(GameStage stage) {
+    long time = incoming.getLong();
+    int n = incoming.getInt();
+    state.clear();
+    state.ensure(n);
+    for (int i=0; i<n; i++) state.data[i] = incoming.getInt();
+    state.length = n;
+    stage.restoreTimeElapsed(time);
+    stage.loadState(state);
+    synced = true;
+  }
+
+  // Reproduce un tick en el mismo orden que GameStage.simulateTick(): colisiones,
+  // movimiento de las entidades, cerillas, cerillas nuevas y combustión espontánea
+  private void applyDelta(GameStage stage, int end) {
+    long time = incoming.getLong();
+    int flags = incoming.get();
+    long score = incoming.getLong();
+    int lifePoints = incoming.getInt();
+    int pendingLifePoints = incoming.getInt();
+    int powerPoints = incoming.getInt();
+    int pendingPowerPoints = incoming.getInt();
+    long lastHitTime = incoming.getLong();
+    float terrainSpeed = incoming.getFloat();
+    int x = incoming.getInt();
+    int y = incoming.getInt();
+    int turkeyColumn = incoming.getInt();
+    int animation = incoming.get();
+    long animationStart = incoming.getLong();
+
+    stage.restoreTimeElapsed(time);
+    if ((flags & SPECTATOR_STEPPED) != 0) {
+      MatchStore matches = stage.matches;
+      EntityStore entities = stage.entities;
+      // Fase del tick en la que está el espectador: 0 colisiones, 1 cerillas encendidas, 2 mundo nuevo
+      int phase = 0;
+      while (incoming.position() < end) {
+        byte event = incoming.get();
+        if (phase == 0 && event != SPECTATOR_EVENT_COLLECT) {
+          // Terminan las colisiones: las entidades se desplazan y las cerillas fuera de pantalla se quitan
+          stage.movementSystem.update(entities, stage.terrainSpeed, matches.firstColumn);
+          removeOffscreen(matches);
+          phase = 1;
+        }
+        if (phase == 1 && event != SPECTATOR_EVENT_IGNITE) {
+          replayMatches(matches, stage.terrainSpeed);
+          phase = 2;
+        }
+        switch (event) {
+        case SPECTATOR_EVENT_COLLECT:
+          entities.detach(incoming.getShort());
+          break;
+        case SPECTATOR_EVENT_IGNITE:
+          int c = incoming.getShort();
+          matches.intensity[c] = MatchStore.MAX_INTENSITY;
+          matches.heat[c] = 0;
+          matches.used[c] = true;
+          break;
+        case SPECTATOR_EVENT_MATCH:
+          int mx = incoming.getInt();
+          int my = incoming.getShort();
+          matches.add(mx, my, incoming.get() != 0);
+          break;
+        case SPECTATOR_EVENT_SPAWN:
+          int kind = incoming.get();
+          long column = incoming.getLong();
+          int sx = incoming.getInt();
+          entities.spawn(kind, column, sx, incoming.getInt(), time);
+          break;
+        case SPECTATOR_EVENT_SPARK:
+          matches.heat[incoming.getShort()] = MatchStore.MAX_HEAT;
+          break;
+        }
+      }
+      if (phase == 0) {
+        stage.movementSystem.update(entities, stage.terrainSpeed, matches.firstColumn);
+        removeOffscreen(matches);
+        phase = 1;
+      }
+      if (phase == 1) replayMatches(matches, stage.terrainSpeed);
+    }
+
+    stage.score = score;
+    stage.lifePoints = lifePoints;
+    stage.pendingLifePoints = pendingLifePoints;
+    stage.powerPoints = powerPoints;
+    stage.pendingPowerPoints = pendingPowerPoints;
+    stage.lastHitTime = lastHitTime;
+    stage.terrainSpeed = terrainSpeed;
+    stage.dead = (flags & SPECTATOR_DEAD) != 0;
+    stage.fly = (flags & SPECTATOR_FLY) != 0;
+    stage.turkey.position.x = x;
+    stage.turkey.position.y = y;
+    stage.turkeyColumn = turkeyColumn;
+    stage.turkey.currentAnimation = stage.turkey.getAnimation(animation);
+    stage.turkey.animationStart = animationStart;
+  }
+
+  private void removeOffscreen(MatchStore matches) {
+    int offscreen = 0;
+    while (offscreen < matches.count && matches.x[offscreen] < 0) offscreen++;
+    matches.removeFirst(offscreen);
+  }
+
+  // La parte determinista de GameStage.updateMatches(): desplazamiento, llama que se
+  // apaga y calor que pasa a las vecinas. Las cerillas del tick ya se han encendido
+  private void replayMatches(MatchStore matches, float terrainSpeed) {
+    for (int c=0; c<matches.count; c++) {
+      matches.x[c]-=terrainSpeed;
+      if (matches.used[c] && matches.intensity[c] > 0) {
+        matches.intensity[c]-=MatchStore.INTENSITY_DECAY;
+        if (c > 0 && !matches.used[c-1] && !matches.noFire[c-1]) matches.heat[c-1]+=MatchStore.HEAT_TRANSMISION;
+        if (c < matches.count - 2 && !matches.used[c+1] && !matches.noFire[c+1]) matches.heat[c+1]+=MatchStore.HEAT_TRANSMISION;
+      }
+    }
+  }
+
+  void close() {
+    closed = true;
+    try {
+      channel.close();
+    }
+    catch (IOException e) {
+      println("spectator: " + e.getMessage());
+    }
+  }
+}
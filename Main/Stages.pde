@@ -1,4 +1,7 @@
 import processing.core.PApplet; //<>//
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 ///////////////////
 //
@@ -18,7 +21,7 @@ enum StageState {
   Undefined, 
     // Estado comenzado
     Started, 
-    // Estado pausa (actualmente no en uso)
+    // Estado pausa, el tiempo de la etapa no avanza
     Paused, 
     // Estado finalizado
     Ended
@@ -29,6 +32,8 @@ enum StageState {
  *
  */
 abstract class Stage {
+  // Resultado por defecto de una etapa que termina
+  public final static int OUTCOME_DONE = 0;
   // Estado en que se encuentra la etapa
   private StageState state;
   // Tiempo transcurrido desde que se inició
@@ -48,6 +53,16 @@ abstract class Stage {
   protected int width, height;
   // Referencia al applet principal, necesario para inicialización de audio/ui
   protected final PApplet applet;
+  // Las etapas estáticas solo se repintan cuando algo cambia, en lugar de en cada fotograma
+  private boolean redrawOnChange;
+  // La superficie no refleja el estado actual y debe repintarse
+  private boolean invalid;
+  // La superficie ha cambiado desde la última vez que se volcó en pantalla
+  private boolean changed;
+  // Los recursos de la etapa ya se han preparado
+  private boolean prepared;
+  // Nodo del guión de navegación que creó la etapa, null en las transiciones
+  private StageNode node;
 
   Stage(PApplet applet) {
     this.applet = applet;
@@ -55,6 +70,10 @@ abstract class Stage {
     state = StageState.Undefined;
     // Inicialización del tiempo transcurrido
     timeElapsed = 0;
+    // Por defecto las etapas se repintan en cada fotograma
+    redrawOnChange = false;
+    invalid = true;
+    changed = false;
   }
 
   // Establece el tamaño de la etapa
@@ -74,14 +93,71 @@ abstract class Stage {
   public StageState getState() {
     return state;
   }
+  // Asocia la etapa al nodo del guión que la creó
+  public void setNode(StageNode node) {
+    this.node = node;
+  }
+  // Obtiene el nodo del guión que creó la etapa
+  public StageNode getNode() {
+    return node;
+  }
+  // Obtiene el resultado con el que terminó la etapa. El controlador lo usa para
+  // elegir la siguiente etapa en el guión de navegación
+  int getOutcome() {
+    return OUTCOME_DONE;
+  }
   // Obtiene el número de milisegundos transcurridos desde el inicio
   final public long getTimeElapsed() {
     return timeElapsed;
   }
+  // Restablece el tiempo transcurrido, para reanudar una etapa guardada
+  final void restoreTimeElapsed(long time) {
+    timeElapsed = time;
+  }
   // Obtiene la superficie gráfica de esta etapa
   final public PGraphics getGraphics() {
     return graphics;
   }
+  // Sustituye la superficie gráfica publicada, para las etapas que pintan
+  // sobre varias superficies alternas
+  final protected void setGraphics(PGraphics graphics) {
+    this.graphics = graphics;
+  }
+  // Activa el modo de repintado bajo demanda: la etapa solo se pinta al empezar
+  // y cada vez que invoque invalidate()
+  final protected void setRedrawOnChange(boolean redrawOnChange) {
+    this.redrawOnChange = redrawOnChange;
+  }
+  // Solicita repintar la superficie en el próximo fotograma
+  final public void invalidate() {
+    invalid = true;
+  }
+  // Indica si la superficie ha cambiado desde la última vez que se volcó en pantalla.
+  // Las etapas que se repintan en cada fotograma siempre han cambiado
+  final public boolean hasChanged() {
+    return !redrawOnChange || changed || invalid;
+  }
+  // Informa de que la superficie actual ya se ha volcado en pantalla
+  final public void markPresented() {
+    changed = false;
+  }
+  // Indica si la superficie se actualiza fuera de render(), por ejemplo desde
+  // un hilo de pintado. En ese caso render() no debe tocarla
+  boolean isRenderedExternally() {
+    return false;
+  }
+  /*
+   * Prepara los recursos de la etapa que no dependen de su superficie de
+   * dibujo (imágenes, animaciones, tablas). El coordinador lo invoca desde
+   * un hilo de carga mientras se ejecuta la etapa anterior; si no llegó a
+   * hacerlo, begin() lo hace antes de arrancar la etapa
+   */
+  final synchronized void prepare() {
+    if (!prepared) {
+      this.onStagePrepare();
+      prepared = true;
+    }
+  }
   /*
    * Punto de entrada de la etapa. Cuando el coordinador
    * de etapas determine que esta etapa debe entrar en escena
@@ -90,10 +166,19 @@ abstract class Stage {
    * su funcionalidad
    */
   final void begin() {
+    // Nos aseguramos de tener los recursos cargados (si se están cargando en otro hilo, esperamos)
+    prepare();
     // Cambio de estado a "empezada"
     this.state = StageState.Started;
-    // Creamos una nueva superficie gráfica con el tamaño apropiad
-    this.graphics = createGraphics(width, height);
+    // Una etapa reutilizada vuelve a empezar desde cero
+    this.timeElapsed = 0;
+    // Creamos una nueva superficie gráfica con el tamaño apropiado, salvo que la
+    // etapa se esté reutilizando y ya tenga una
+    if (this.graphics == null || this.graphics.width != width || this.graphics.height != height) {
+      this.graphics = createGraphics(width, height);
+    }
+    // Una superficie nueva siempre debe pintarse
+    invalidate();
 
     println("Stage "+this.getClass().getName()+" starts");
     // Delegamos la funcionalidad
@@ -114,16 +199,60 @@ abstract class Stage {
     println(this.getClass().getName()+" alive for "+timeElapsed+" millis");
   }
 
+  /*
+   * Detiene temporalmente la etapa. Mientras está en pausa no se simula
+   * ni se pinta, por lo que su tiempo transcurrido queda congelado
+   */
+  final void pause() {
+    if (this.state == StageState.Started) {
+      this.state = StageState.Paused;
+      this.onStagePause();
+    }
+  }
+  /*
+   * Reanuda una etapa en pausa en el punto en que se detuvo
+   */
+  final void resume() {
+    if (this.state == StageState.Paused) {
+      this.state = StageState.Started;
+      this.onStageResume();
+    }
+  }
+
   /*
    * Este método se encarga de efectuar el siguiente
    * ciclo de actualización de la etapa, alimentando a esta
    * con la diferencia de tiempo desde la última ejecución.
+   * El ciclo se divide en dos fases: simulación y pintado.
    */
   final void update(long delta) {
+    simulate(delta);
+    render(delta);
+  }
+
+  /*
+   * Fase de simulación: avanza el tiempo y el estado de la etapa
+   * sin tocar la superficie de dibujo. Puede invocarse sin su
+   * fase de pintado para ejecutar la etapa sin pantalla o para
+   * saltar fotogramas.
+   */
+  final void simulate(long delta) {
     // No hay nada que actualizar si no ha sido inicializada
     if (this.state == StageState.Started) {
       // Actualizamos el tiempo pasado
       this.timeElapsed += delta;
+      this.onStageSimulate(delta);
+    }
+  }
+
+  /*
+   * Fase de pintado: vuelca el estado actual de la etapa en su
+   * superficie de dibujo
+   */
+  final void render(long delta) {
+    if (this.state == StageState.Started && !isRenderedExternally()) {
+      // En modo bajo demanda, no repintamos una superficie que sigue siendo válida
+      if (redrawOnChange && !invalid) return;
       // https://processing.org/reference/PGraphics_beginDraw_.html
       /*
        * Fuera de la función principal draw() del script base, parece
@@ -136,8 +265,24 @@ abstract class Stage {
       graphics.beginDraw();
       this.onStageUpdate(delta);
       graphics.endDraw();
+      invalid = false;
+      changed = true;
     }
   }
+  /*
+   * Callback de simulación, invocado antes de pintar cada fotograma. Las
+   * etapas que separan su lógica del pintado la implementan aquí, y dejan
+   * en onStageUpdate() únicamente las operaciones de dibujo
+   */
+  void onStageSimulate(long delta) {
+  }
+  /*
+   * Callback de preparación. Se ejecuta una sola vez, posiblemente fuera del
+   * hilo de animación, así que no debe usar superficies de dibujo, la interfaz
+   * ni el estado global del applet
+   */
+  void onStagePrepare() {
+  }
   /*
    * Callback de inicialización, invocado al pasar a Started 
    */
@@ -146,6 +291,16 @@ abstract class Stage {
     // el comienzo de la etapa
     println(this.getClass().getName()+" stage begin");
   }
+  /*
+   * Callback de pausa, invocado al pasar a Paused
+   */
+  void onStagePause() {
+  }
+  /*
+   * Callback de reanudación, invocado al volver de Paused a Started
+   */
+  void onStageResume() {
+  }
   /*
    * Callback de finalización, invocado al pasar a Ended
    */
@@ -177,9 +332,21 @@ class GreetingStage extends Stage {
     super(applet);
     this.duration = duration;
   }
+  // Callback de preparación
+  void onStagePrepare() {
+    image = loadImage(ASSETS_PATH+"match.jpg");
+  }
   // Callback de inicialización
   void onStageBegin() {
-    image = loadImage(ASSETS_PATH+"match.jpg");
+    // La presentación no cambia mientras dura, basta con pintarla una vez
+    setRedrawOnChange(true);
+  }
+  // Callback de simulación
+  void onStageSimulate(long delta) {
+    // Verificamos la condición de salida e invocamos la finalización
+    if (this.getTimeElapsed() >= duration) {
+      this.end();
+    }
   }
   // Callback de actualizacion
   void onStageUpdate(long delta) {
@@ -199,13 +366,6 @@ class GreetingStage extends Stage {
     // Pintamos la primera etiqueta en amarillo
     gfx.fill(255, 255, 0);    
     gfx.text(label2, (2*this.width/3-gfx.textWidth(label2))/2, height/2 + 100);
-
-
-
-    // Verificamos la condición de salida e invocamos la finalización
-    if (this.getTimeElapsed() >= duration) {
-      this.end();
-    }
   }
 }
 
@@ -215,157 +375,198 @@ class GreetingStage extends Stage {
  * Este menú presenta dos sets de interfaz (principal y configuración), y 
  * alterna entre ellos en función de la entrada del usuario
  */
-class MenuStage extends Stage {
+class MenuStage extends Stage implements UIListener {
   // El usuario no ha seleccionado nada
   public final static int NONE = 0;
   // El usuario ha seleccionado RUN
   public final static int RUN = 1;
   // El usuario ha seleccionado EXIT
   public final static int EXIT = 2;
+
+  // Acciones de los controles del menú
+  private final static int ACTION_CONFIG = 0;
+  private final static int ACTION_RUN = 1;
+  private final static int ACTION_EXIT = 2;
+  private final static int ACTION_BACK = 3;
+  private final static int ACTION_VOLUME = 4;
+  private final static int ACTION_MUSIC_1 = 5;
+  private final static int ACTION_MUSIC_2 = 6;
+  private final static int ACTION_MUSIC_3 = 7;
+  private final static int ACTION_IMAGE_1 = 8;
+  private final static int ACTION_IMAGE_2 = 9;
+  private final static int ACTION_IMAGE_3 = 10;
+
   // Elección dle usuario
   private int playerChoice;
 
-  // Fuente grande para las etiqutas
-  ControlFont bigFont;
-  // Fuente mediana para las etiqutas
-  ControlFont regularFont;
   // Capa de interfaz principal
-  ControlP5 menuMain;
+  UILayer menuMain;
   // Capa de interfaz de configuración
-  ControlP5 menuConfig;
+  UILayer menuConfig;
   // Determina el menú activo en cada situación
-  ControlP5 menuActive;
-  // Referencia al control con el ratón encima
-  Object controlWithMouseOver;
+  UILayer menuActive;
+  // Control con el ratón encima en el fotograma anterior
+  int controlWithMouseOver;
 
   MenuStage(PApplet applet) {
     super(applet);
   }
 
-  void onStageBegin() {
+  // Callback de preparación
+  void onStagePrepare() {
     // Precargamos las imágenes asociadas a los botones que vamos a incluir
     loadButtonImages(new String[]{"btn-config", "btn-run", "btn-exit", "btn-music1", "btn-music2", "btn-music3", "btn-image1", "btn-image2", "btn-image3", "btn-back"});
+  }
+
+  void onStageBegin() {
+    // Las capas de interfaz se construyen solo la primera vez que se entra en el menú,
+    // las siguientes se reutilizan vinculándolas a esta etapa
+    menuMain = uiManager.acquire("menu.main", this);
+    menuConfig = uiManager.acquire("menu.config", this);
+    if (menuMain.isEmpty()) {
+      buildMenus();
+    }
+
+    // Establecemos por defecto el menú principal como capa de interfaz activa
+    enableMenu(menuConfig, false);
+    enableMenu(menuMain, true);
+    controlWithMouseOver = -1;
+    // El fondo solo cambia al elegir otra imagen, los controles se pintan aparte
+    setRedrawOnChange(true);
+
+    // Establecemos NADA como selección del usuario
+    playerChoice = NONE;
+  }
+
+  // Crea los controles de ambas capas de interfaz
+  private void buildMenus() {
     // Tamaño por defecto de todos los botones
     int buttonWidth = 150;
     
     // Inicializamos las fuentes para etiquetas y botones
-    bigFont = new ControlFont(createFont(ASSETS_PATH+"BebasNeue Bold.ttf", 40));
-    regularFont = new ControlFont(createFont(ASSETS_PATH+"BebasNeue Bold.ttf", 25));
+    PFont bigFont = createFont(ASSETS_PATH+"BebasNeue Bold.ttf", 40);
+    PFont regularFont = createFont(ASSETS_PATH+"BebasNeue Bold.ttf", 25);
+
+    // Añadimos los tres botones del menú principal
+    menuMain.addImageButton(ACTION_CONFIG, "btn-config", (this.width-buttonWidth)/2, 100);
+    menuMain.addImageButton(ACTION_RUN, "btn-run", (this.width-buttonWidth)/2, 175);
+    menuMain.addImageButton(ACTION_EXIT, "btn-exit", (this.width-buttonWidth)/2, 250);
 
-    // Creamos la capa de interfaz del menu principal
-    menuMain = new ControlP5(applet);
-    // Desactivamos el menu temporalmente
-    enableMenu(menuMain, false);
-    // Añadimos los tres botones del menú principal y los vinculamos a los métodos onConfigClick, onrunClick y onExitClick
-    createImageButton(this, menuMain, "onConfigClick", "btn-config", (this.width-buttonWidth)/2, 100).setValue(0);
-    createImageButton(this, menuMain, "onRunClick", "btn-run", (this.width-buttonWidth)/2, 175).setValue(0);
-    createImageButton(this, menuMain, "onExitClick", "btn-exit", (this.width-buttonWidth)/2, 250).setValue(0);
-
-    // Creamos la capa de interfaz del menu de configuracion
-    menuConfig = new ControlP5(applet);
-    // Desactivamos el menu temporalmente
-    enableMenu(menuConfig, false);
     // Añadimos la etiqueta de cambio de música
-    menuConfig.addLabel("Cambiar música", 25, 50).setFont(bigFont);
+    menuConfig.addLabel("Cambiar música", bigFont, 25, 50);
     // Creamos los botones del panel de configuracion
-    createImageButton(this, menuConfig, "onMusicButtonClick1", "btn-music1", 75, 100);
-    createImageButton(this, menuConfig, "onMusicButtonClick2", "btn-music2", 235, 100);
-    createImageButton(this, menuConfig, "onMusicButtonClick3", "btn-music3", 395, 100);
+    menuConfig.addImageButton(ACTION_MUSIC_1, "btn-music1", 75, 100);
+    menuConfig.addImageButton(ACTION_MUSIC_2, "btn-music2", 235, 100);
+    menuConfig.addImageButton(ACTION_MUSIC_3, "btn-music3", 395, 100);
     // Control de volumen
-    CColor sliderColor = new CColor(color(190, 34, 0), color(0, 0, 0, 100), color(254, 180, 38), color(255, 255, 255), color(255, 255, 255));
-    menuConfig.addSlider(this, "onVolumeChange").setPosition(new float[]{75, 175}).setSize(400, 50).setLabel("Volumen").setFont(regularFont).setColor(sliderColor).setValue(50);
+    menuConfig.addSlider(ACTION_VOLUME, "Volumen", regularFont, 75, 175, 400, 50, 0, 100, 50);
     // Sección de imagen de fondo
-    menuConfig.addLabel("Cambiar imagen", 25, 275).setFont(bigFont);
-    createImageButton(this, menuConfig, "onImageButtonClick1", "btn-image1", 75, 325);
-    createImageButton(this, menuConfig, "onImageButtonClick2", "btn-image2", 235, 325);
-    createImageButton(this, menuConfig, "onImageButtonClick3", "btn-image3", 395, 325);
+    menuConfig.addLabel("Cambiar imagen", bigFont, 25, 275);
+    menuConfig.addImageButton(ACTION_IMAGE_1, "btn-image1", 75, 325);
+    menuConfig.addImageButton(ACTION_IMAGE_2, "btn-image2", 235, 325);
+    menuConfig.addImageButton(ACTION_IMAGE_3, "btn-image3", 395, 325);
 
     // Botón para cambiar entre UIs
-    createImageButton(this, menuConfig, "onBackClick", "btn-back", 25, 500).setValue(0);
-
-    // Establecemos por defecto el menú principal como capa de interfaz activa
-    enableMenu(menuMain, true);
-
-    // Establecemos NADA como selección del usuario
-    playerChoice = NONE;
+    menuConfig.addImageButton(ACTION_BACK, "btn-back", 25, 500);
   }
 
   // Habilita o deshabilita un conjunto de controles, así como la propagación de sus eventos
-  private void enableMenu(ControlP5 menu, boolean enabled) {
-    menu.setVisible(enabled);
-    menu.setBroadcast(enabled);
+  private void enableMenu(UILayer menu, boolean enabled) {
     if (enabled) {
+      menu.attach();
       menuActive = menu;
+    } else {
+      menu.detach();
+    }
+  }
+
+  // Este metodo se invoca siempre que un control emite un evento 
+  public void onUIEvent(int action, float value) {
+    // En cada evento reproducimos el sample CLICK, funciona también en el cambio de valor del slider
+    Audio.playSample(Audio.BUTTON_CLICK);
+
+    switch (action) {
+    case ACTION_CONFIG:
+      onConfigClick();
+      break;
+    case ACTION_RUN:
+      onRunClick();
+      break;
+    case ACTION_EXIT:
+      onExitClick();
+      break;
+    case ACTION_BACK:
+      onBackClick();
+      break;
+    case ACTION_VOLUME:
+      onVolumeChange(value);
+      break;
+    case ACTION_MUSIC_1:
+      Audio.playTheme(Audio.THEME_1);
+      break;
+    case ACTION_MUSIC_2:
+      Audio.playTheme(Audio.THEME_2);
+      break;
+    case ACTION_MUSIC_3:
+      Audio.playTheme(Audio.THEME_3);
+      break;
+    case ACTION_IMAGE_1:
+      appCfgBackgroundImage = "a";
+      invalidate();
+      break;
+    case ACTION_IMAGE_2:
+      appCfgBackgroundImage = "b";
+      invalidate();
+      break;
+    case ACTION_IMAGE_3:
+      appCfgBackgroundImage = "c";
+      invalidate();
+      break;
     }
   }
   
   // Callback del control deslizador
-  public void onVolumeChange(float v) {
+  void onVolumeChange(float v) {
     Audio.setVolume(v);
   }
   
   // Callback del botón CONFIG
-  public void onConfigClick(int theValue) {
+  void onConfigClick() {
     enableMenu(menuMain, false);
     enableMenu(menuConfig, true);
   }
 
   // Callback del botón RUN
-  void onRunClick(int v) {
+  void onRunClick() {
     playerChoice = RUN;
     end();
   }
   
   // Callback del botón EXIT
-  void onExitClick(int v) {
+  void onExitClick() {
     playerChoice = EXIT; 
     end();
   }
 
   // Callback del botón VOLVER
-  void onBackClick(int v) {
+  void onBackClick() {
     enableMenu(menuMain, true);
     enableMenu(menuConfig, false);
   }
-
-  // Callback de los botones de cambio de imagen de fondo
-  void onImageButtonClick1() { 
-    appCfgBackgroundImage = "a";
-  }
-  void onImageButtonClick2() { 
-    appCfgBackgroundImage = "b";
-  }
-  void onImageButtonClick3() { 
-    appCfgBackgroundImage = "c";
-  }
-  // Callback de los botones de cambio de hilo musical
-  void onMusicButtonClick1() { 
-    Audio.playTheme(Audio.THEME_1);
-  }
-  void onMusicButtonClick2() { 
-    Audio.playTheme(Audio.THEME_2);
-  }
-  void onMusicButtonClick3() { 
-    Audio.playTheme(Audio.THEME_3);
-  }
-
-  // Este metodo se invoca siempre que un control emite un evento 
-  void controlEvent(ControlEvent event) {
-    // En cada evento reproducimos el sample CLICK, funciona también en el cambio de valor del slider
-    Audio.playSample(Audio.BUTTON_CLICK);
-  }
   
-  // Callback de actualizacion
-  void onStageUpdate(long delta) {
+  // Callback de simulación
+  void onStageSimulate(long delta) {
     // Si el ratón está sobre algún control y antes no lo estaba, reproducimos un sample para el evento OVER
     // Despues, nos quedamos con una referencia a dicho control para no ejecutar el sonido mas de una vez
-    if (menuActive.getMouseOverList().size() > 0 && controlWithMouseOver == null) {
-      controlWithMouseOver = menuActive.getMouseOverList().get(0);
+    int hover = menuActive.getHover();
+    if (hover >= 0 && controlWithMouseOver < 0) {
       Audio.playSample(Audio.BUTTON_OVER);
-    } else if (menuActive.getMouseOverList().size() == 0) {
-      controlWithMouseOver = null;
     }
-
+    controlWithMouseOver = hover;
+  }
+  
+  // Callback de actualizacion
+  void onStageUpdate(long delta) {
     PGraphics gfx = getGraphics();
     PImage backgroundImage = getBackgroundImage(appCfgBackgroundImage);
 
@@ -382,13 +583,18 @@ class MenuStage extends Stage {
   int getPlayerChoice() {
     return playerChoice;
   }
+
+  // El resultado del menú es la elección del usuario
+  int getOutcome() {
+    return playerChoice;
+  }
 }
 
 /**
  * TransitionStage - Metaetapa de transición entre dos etapas
  *
  * Esta etapa sirve como paso intermedio entre dos etapas cualesquiera, creando
- * un efecto de fundido a negro entre una y otra. Para que el efecto funcione
+ * un efecto de fundido (a negro, a blanco o mezclando ambas) entre una y otra. Para que el efecto funcione
  * la etapa previa y la siguiente deben tener sus superficies de dibujado pintadas
  * para que el efecto de transición sea apreciable.
  */
@@ -397,7 +603,7 @@ class TransitionStage extends Stage {
   final static int FADE_BLACK = 0;
   // Flag de transición "fundido a blanco"
   final static int FADE_WHITE = 1;
-  // Flag d etransición "mezcla"
+  // Flag de transición "mezcla", la etapa siguiente aparece directamente sobre la anterior
   final static int FADE_BLEND = 2;
   // Referencias a las etapas anterior y siguiente
   Stage next, prev;
@@ -434,47 +640,59 @@ class TransitionStage extends Stage {
     PGraphics gfx = this.getGraphics();
     // Obtenemos el tiempo transcurrido
     long elapsed = getTimeElapsed();
-    // Empleamos el 50% de la duración para el fundido a negro
-    long fadeoutDuration = duration / 2;
-    // El 50% restante para el fundido desde negro
-    long fadeinDuration = duration / 2;
-    // Usaremos un velo negro con opacidad variable para controlar el fundido
-    int opacity = 0;
-
-    // Usando el tiempo transcurrido como referencia, empleamos el 50%
-    // de la duración en hacer el fundido a negro
-    if (elapsed <= fadeoutDuration) {
-      // La primera escena ya ha terminado, solo necesitamos tomar su último fotograma para hacer la interpolación
-
-      // Reducimos progresivamente la opacidad de 256 (max) a 0
-      opacity = (int) ((256 * elapsed) / fadeoutDuration);
-
-      // Empezamos dibujando la superficie de dibujo de la etapa previa en la superficie de esta etapa
-      gfx.image(prev.getGraphics(), 0, 0);
-      // Pintamos un velo negro con la opacidad establecida
-      gfx.fill(0, 0, 0, opacity);
-      gfx.rect(0, 0, this.width, this.height);
-    } else if ( (elapsed-fadeoutDuration) < fadeinDuration) {
-      // La segunda mitad de la duración, hacemos el proceso inverso
-
-      // Calculamos la opacidad para que vaya desde 256 hasta 0
-      opacity = 256 - (int) ((256 * (elapsed-fadeoutDuration) / fadeinDuration));
-
-      // Esta linea es opcional, si no se ejecuta la etapa quedará congelada en el tiempo
-      // mientras dura la transicion. Si se invoca, la etapa siguiente será procesada con 
-      // normalidad.
-      next.update(delta);
 
-      // Pintamos la superficie de dibujo de la etapa siguiente en la superficie de esta capa
-      gfx.image(next.getGraphics(), 0, 0);
-      // Y terminamos pintando el velo a la opacidad elegida
-      gfx.fill(0, 0, 0, opacity );
-      gfx.rect(0, 0, this.width, this.height);
-    } else {
-      // Una vez superada la duración, invocamos la finalización de la etapa
+    // Una vez superada la duración, invocamos la finalización de la etapa
+    if (elapsed >= duration) {
       end();
+      return;
     }
+
+    // El fundido se compone pixel a pixel directamente sobre el array de la superficie
+    int[] dst = getSurfacePixels(gfx);
+    boolean copyBack = dst == null;
+    if (copyBack) {
+      gfx.loadPixels();
+      dst = gfx.pixels;
+    }
+
+    if (transitionType == FADE_BLEND) {
+      // Mezcla: la etapa siguiente se ejecuta desde el principio y va apareciendo sobre la anterior
+      next.update(delta);
+      int level = (int) (255 * elapsed / duration);
+      fadeCompositor.blend(getPixels(prev), getPixels(next), dst, dst.length, level);
+    } else {
+      // Fundido a un color: empleamos el 50% de la duración en fundir la etapa anterior
+      // hacia el color, y el 50% restante en hacer aparecer la siguiente desde él
+      int towards = transitionType == FADE_WHITE ? 255 : 0;
+      long half = duration / 2;
+      if (elapsed <= half) {
+        // La primera escena ya ha terminado, solo necesitamos tomar su último fotograma para hacer la interpolación
+        int level = (int) (255 * elapsed / half);
+        fadeCompositor.fade(getPixels(prev), dst, dst.length, towards, level);
+      } else {
+        // Esta linea es opcional, si no se ejecuta la etapa quedará congelada en el tiempo
+        // mientras dura la transicion. Si se invoca, la etapa siguiente será procesada con 
+        // normalidad.
+        next.update(delta);
+        int level = 255 - (int) (255 * (elapsed - half) / (duration - half));
+        fadeCompositor.fade(getPixels(next), dst, dst.length, towards, level);
+      }
+    }
+
+    if (copyBack) gfx.updatePixels();
   }
+
+  // Devuelve los pixeles de la superficie de una etapa
+  private int[] getPixels(Stage stage) {
+    PGraphics g = stage.getGraphics();
+    int[] pixels = getSurfacePixels(g);
+    if (pixels == null) {
+      g.loadPixels();
+      pixels = g.pixels;
+    }
+    return pixels;
+  }
+
   // Obtiene la referencia a la etapa siguiente 
   public Stage getNextStage() {
     return next;
@@ -505,6 +723,193 @@ class EndStage extends GreetingStage {
   }
 }
 
+/**
+ * StageGraph - Guión de navegación entre etapas
+ *
+ * La navegación del juego se describe como un grafo: cada nodo es una fábrica de
+ * etapas con su política de reutilización, y cada arista indica a qué nodo se pasa
+ * cuando una etapa termina con un resultado concreto, y con qué transición. El
+ * controlador solo recorre el grafo, por lo que añadir una etapa nueva consiste
+ * en registrar su nodo y sus aristas en createStageGraph().
+ */
+
+// Fábrica de instancias de una etapa
+interface StageFactory {
+  Stage create(PApplet applet);
+}
+
+/*
+  Nodo del grafo: sabe crear su etapa y decide si las instancias se reutilizan
+ */
+class StageNode {
+  // Se crea una instancia nueva en cada visita
+  final static int PER_VISIT = 0;
+  // Las instancias terminadas vuelven a un almacén y se reutilizan
+  final static int POOLED = 1;
+  // Existe una única instancia que se reutiliza siempre
+  final static int SINGLETON = 2;
+
+  // Nombre del nodo
+  String name;
+  // Posición del nodo en las tablas del grafo
+  int index;
+  // Fábrica de instancias
+  StageFactory factory;
+  // Política de reutilización
+  int policy;
+  // Instancias libres, creadas de antemano o devueltas tras usarse
+  List<Stage> idle;
+  // Instancia única, en la política SINGLETON
+  Stage instance;
+
+  // Constructor
+  StageNode(String name, int index, StageFactory factory, int policy) {
+    this.name = name;
+    this.index = index;
+    this.factory = factory;
+    this.policy = policy;
+    this.idle = new ArrayList<Stage>();
+  }
+
+  // Crea una instancia y la asocia a este nodo
+  private Stage create(PApplet applet) {
+    Stage stage = factory.create(applet);
+    stage.setNode(this);
+    return stage;
+  }
+
+  // Devuelve una instancia lista para empezar
+  Stage acquire(PApplet applet) {
+    if (policy == SINGLETON) {
+      if (instance == null) instance = create(applet);
+      return instance;
+    }
+    if (!idle.isEmpty()) return idle.remove(idle.size()-1);
+    return create(applet);
+  }
+
+  // Recibe una instancia que ya ha salido de escena
+  void release(Stage stage) {
+    if (policy == POOLED) idle.add(stage);
+  }
+
+  // Se asegura de que la siguiente visita tenga una instancia creada y la devuelve, para prepararla
+  Stage warm(PApplet applet) {
+    if (policy == SINGLETON) return acquire(applet);
+    if (idle.isEmpty()) idle.add(create(applet));
+    return idle.get(idle.size()-1);
+  }
+}
+
+/*
+  Arista del grafo: destino (null para salir de la aplicación) y transición
+ */
+class StageEdge {
+  // Nodo de destino
+  StageNode to;
+  // Tipo de transición (TransitionStage.FADE_*), o -1 para pasar sin transición
+  int transitionType;
+  // Duración de la transición en milisegundos
+  long duration;
+
+  StageEdge(StageNode to, int transitionType, long duration) {
+    this.to = to;
+    this.transitionType = transitionType;
+    this.duration = duration;
+  }
+}
+
+class StageGraph {
+  // Sin transición entre etapas
+  final static int NO_TRANSITION = -1;
+
+  // Nodos por nombre y por posición
+  Map<String, StageNode> nodesByName;
+  List<StageNode> nodes;
+  // Nodo inicial
+  StageNode start;
+  // Tabla de aristas, indexada por nodo de origen y resultado de la etapa
+  StageEdge[][] edges;
+
+  StageGraph() {
+    nodesByName = new HashMap<String, StageNode>();
+    nodes = new ArrayList<StageNode>();
+    edges = new StageEdge[0][];
+  }
+
+  // Registra un nodo. El primero registrado es el nodo inicial
+  StageNode addNode(String name, int policy, StageFactory factory) {
+    StageNode node = new StageNode(name, nodes.size(), factory, policy);
+    nodes.add(node);
+    nodesByName.put(name, node);
+    if (start == null) start = node;
+    edges = Arrays.copyOf(edges, nodes.size());
+    edges[node.index] = new StageEdge[0];
+    return node;
+  }
+
+  // Registra una arista. Si 'to' es null, la aplicación termina al seguirla
+  void addEdge(String from, int outcome, String to, int transitionType, long duration) {
+    StageNode origin = nodesByName.get(from);
+    StageEdge[] row = edges[origin.index];
+    if (outcome >= row.length) {
+      row = Arrays.copyOf(row, outcome+1);
+      edges[origin.index] = row;
+    }
+    row[outcome] = new StageEdge(to == null ? null : nodesByName.get(to), transitionType, duration);
+  }
+
+  // Devuelve la arista a seguir cuando una etapa del nodo termina con 'outcome', o null si no hay
+  StageEdge getEdge(StageNode from, int outcome) {
+    StageEdge[] row = edges[from.index];
+    return outcome >= 0 && outcome < row.length ? row[outcome] : null;
+  }
+
+  // Devuelve todas las aristas que salen de un nodo (con huecos a null)
+  StageEdge[] getEdges(StageNode from) {
+    return edges[from.index];
+  }
+}
+
+// Construye el guión de navegación del juego
+StageGraph createStageGraph() {
+  StageGraph graph = new StageGraph();
+  // La bienvenida solo se muestra una vez
+  graph.addNode("greeting", StageNode.PER_VISIT, new StageFactory() {
+    public Stage create(PApplet applet) {
+      return new GreetingStage(applet, 5000);
+    }
+  });
+  // El menú mantiene su estado entre visitas
+  graph.addNode("menu", StageNode.SINGLETON, new StageFactory() {
+    public Stage create(PApplet applet) {
+      return new MenuStage(applet);
+    }
+  });
+  // Las partidas terminadas se reciclan para la siguiente
+  graph.addNode("game", StageNode.POOLED, new StageFactory() {
+    public Stage create(PApplet applet) {
+      return new GameStage(applet);
+    }
+  });
+  graph.addNode("end", StageNode.PER_VISIT, new StageFactory() {
+    public Stage create(PApplet applet) {
+      return new EndStage(applet, 5000);
+    }
+  });
+
+  // GREETING -> MENU
+  graph.addEdge("greeting", Stage.OUTCOME_DONE, "menu", TransitionStage.FADE_BLACK, 1000);
+  // MENU -> GAME o END, según la elección del jugador
+  graph.addEdge("menu", MenuStage.RUN, "game", TransitionStage.FADE_BLACK, 1000);
+  graph.addEdge("menu", MenuStage.EXIT, "end", TransitionStage.FADE_BLACK, 1000);
+  // GAME -> MENU
+  graph.addEdge("game", Stage.OUTCOME_DONE, "menu", TransitionStage.FADE_BLACK, 1000);
+  // END -> fin de la aplicación
+  graph.addEdge("end", Stage.OUTCOME_DONE, null, StageGraph.NO_TRANSITION, 0);
+  return graph;
+}
+
 /**
  * StageController - Controla el ciclo de vida de las etapas y orquesta la navegación
  *
@@ -527,6 +932,10 @@ class StageController {
   int screenWidth, screenHeight;
   // Referencia al applet principal
   PApplet applet;
+  // Guión de navegación entre etapas
+  StageGraph graph;
+  // Hilo en el que se preparan de antemano las etapas que pueden venir después
+  ExecutorService loader;
 
   // Constructor
   StageController(PApplet applet, int screenWidth, int screenHeight) {
@@ -539,6 +948,16 @@ class StageController {
     // Inicialmente no hay ninguna etapa asignada
     this.stage = null;
     this.prevStage = null;
+    // Cargamos el guión de navegación
+    this.graph = createStageGraph();
+    // Un único hilo de carga, que no impide cerrar la aplicación
+    this.loader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable task) {
+        Thread thread = new Thread(task, "stage-loader");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
   }
   // Obtiene la instancia del gestor de e/s
   InputHandler getInputHandler() {
@@ -560,55 +979,46 @@ class StageController {
   }
   /*
    * Este método se encarga de gestionar cómo las etapas 
-   * se suceden entre sí. En general, crea una etapa inicial
-   * si no hay ninguna programada y a partir de ahí, comprueba
-   * en cada iteración si la etapa en curso ha terminado. De ser así
-   * comprueba la clase a la que pertenece y establece la siguiente 
-   * etapa a ejecutar. La gestion de todas las etapas es mas o menos
-   * secuencial salvo en el menú. En esta etapa valoraremos qué decisión
-   * tomar en base a la decisión (botón) que tomó el usuario (RUN o EXIT)
+   * se suceden entre sí. Si no hay ninguna etapa programada, empieza
+   * por el nodo inicial del guión. A partir de ahí, comprueba en cada
+   * iteración si la etapa en curso ha terminado y, de ser así, busca en
+   * el guión la arista que corresponde a su nodo y a su resultado (en el
+   * menú, la decisión que tomó el usuario), y pasa a la etapa de destino
+   * a través de la transición indicada en la arista.
    */
   void processStageSequence() {
     if (stage == null) {
-      // 1.- Si no se ha establecido una escena, comenzamos con el mensaje de bienvenida
-      setNextStage(new GreetingStage(applet, 5000));
-      //setNextStage(new GameStage(applet));
+      // Si no se ha establecido una escena, comenzamos por el nodo inicial del guión
+      setNextStage(graph.start.acquire(applet));
     } else if (stage.getState() == StageState.Ended) {
       // El cambio de una escena a otra se hace solo cuando el controlador
       // comprueba que la etapa en curso ha terminado
 
-      if (stage.getClass() == GreetingStage.class) {
-        // Cambio GREETING->MENU: Si la escena cargada es la pantalla de bienvenida, pasamos a la pantalla de menú
-        setNextStage(new TransitionStage(applet, stage, new MenuStage(applet), TransitionStage.FADE_BLACK, 1000));
-      } else if (stage.getClass() == TransitionStage.class) {
+      if (stage instanceof TransitionStage) {
         // Cambio PREV -(fade)-> NEXT
-        // Si la escena es una transición, pasamos a la escena que tenga configurada como siguiente
-        // Para acceder a los métodos propios de la transición, es necesario hacer un cast a su tipo específico
+        // Al terminar la transición, la etapa anterior deja de mostrarse y puede reutilizarse
         TransitionStage transition = (TransitionStage) stage;
-        setNextStage( transition.getNextStage() );
-      } else if (stage.getClass() == GameStage.class) {
-        // Cambio GAME -> MENU
-        // Si la etapa cargada es la de juego, volvemos a cargar la pantalla de menú
-        setNextStage(new TransitionStage(applet, stage, new MenuStage(applet), TransitionStage.FADE_BLACK, 1000));
-      } else if (stage.getClass() == EndStage.class) {
-        // Cambio GREETING->fin
-        // EndStage es el punto de salida, cerramos la aplicacion cuando haya pasado el tiempo estipulado
+        release(transition.getPrevStage());
+        setNextStage(transition.getNextStage());
+        return;
+      }
+
+      StageEdge edge = graph.getEdge(stage.getNode(), stage.getOutcome());
+      if (edge == null) {
+        // El guión no contempla este resultado, nos quedamos en la etapa actual
+        return;
+      }
+      if (edge.to == null) {
+        // La arista no lleva a ninguna etapa, cerramos la aplicación
         exit();
-      } else if (stage.getClass() == MenuStage.class) {
-        // Al terminar la etapa de menú, la elección del jugador queda disponible, la evaluamos
-        MenuStage menu = (MenuStage)stage;
-        switch(menu.getPlayerChoice()) {
-        case MenuStage.RUN:
-          // RUN: El jugador quiere empezar a jugar
-          // Creamos una transición de 1sg de fundido a negro que de paso a la etapa de juego
-          setNextStage(new TransitionStage(applet, stage, new GameStage(applet), TransitionStage.FADE_BLACK, 1000));
-          break;
-        case MenuStage.EXIT:
-          // EXIT: El jugador quiere salir de la aplicación
-          // Creamos una transición de 1sg de fundido a negro que de paso a la tarjeta de despedida
-          setNextStage(new TransitionStage(applet, stage, new EndStage(applet, 5000), TransitionStage.FADE_BLACK, 1000));
-          break;
-        }
+        return;
+      }
+      Stage next = edge.to.acquire(applet);
+      if (edge.transitionType == StageGraph.NO_TRANSITION) {
+        release(stage);
+        setNextStage(next);
+      } else {
+        setNextStage(new TransitionStage(applet, stage, next, edge.transitionType, edge.duration));
       }
     }
   }
@@ -622,16 +1032,64 @@ class StageController {
     next.setInputHandler(this.input);
     // Configuramos su tamaño
     next.setSize(screenWidth, screenHeight);
-    // Le indicamos que comience para que se inicialice
-    if (next.getState() == StageState.Undefined) next.begin();
+    // Le indicamos que comience para que se inicialice. Las etapas reutilizadas
+    // vuelven a empezar; las que entran por una transición ya han empezado
+    if (next.getState() != StageState.Started) next.begin();
     // Actualizamos la referencia de la etapa en curso
     // a la nueva etapa, dejando que la antigua
     // pase al recolector de basura.
     stage = next;
+    // Mientras se ejecuta, preparamos las etapas que pueden sucederla. En una
+    // transición, la etapa que cuenta es la que está entrando
+    if (next instanceof TransitionStage) {
+      TransitionStage transition = (TransitionStage) next;
+      preloadSuccessors(transition.getNextStage(), transition.getPrevStage());
+    } else {
+      preloadSuccessors(next, null);
+    }
+  }
+
+  // Devuelve una etapa que ha salido de escena a su nodo, para que pueda reutilizarla
+  private void release(Stage old) {
+    if (old.getNode() != null) old.getNode().release(old);
+  }
+
+  // Prepara en el hilo de carga una instancia de cada etapa que puede suceder a la actual.
+  // 'leaving' es la etapa que está saliendo de escena, si la hay: cuando su nodo reutiliza
+  // instancias, volverá a él ya preparada y no hace falta crear otra
+  private void preloadSuccessors(Stage current, Stage leaving) {
+    if (current.getNode() == null) return;
+    for (StageEdge edge : graph.getEdges(current.getNode())) {
+      if (edge == null || edge.to == null || edge.to == current.getNode()) continue;
+      if (leaving != null && edge.to == leaving.getNode() && edge.to.policy != StageNode.PER_VISIT) continue;
+      final Stage next = edge.to.warm(applet);
+      next.setInputHandler(this.input);
+      next.setSize(screenWidth, screenHeight);
+      loader.submit(new Runnable() {
+        public void run() {
+          next.prepare();
+        }
+      });
+    }
   }
 
   // Obtiene la referencia a la etapa en curso
   Stage getStage() {
     return stage;
   }
+
+  // Pone en pausa la etapa en curso
+  void pause() {
+    if (stage != null) stage.pause();
+  }
+
+  // Reanuda la etapa en curso si estaba en pausa
+  void resume() {
+    if (stage != null) stage.resume();
+  }
+
+  // Indica si la etapa en curso está en pausa
+  boolean isPaused() {
+    return stage != null && stage.getState() == StageState.Paused;
+  }
 }
@@ -0,0 +1,276 @@
+//
+// ESCENARIOS DE CARGA
+//
+// Configuran la etapa de juego para los peores casos conocidos (todas las cerillas
+// ardiendo, todas las columnas con enemigo o con item, el terreno a la velocidad
+// máxima, mundos de ancho 4K y 8K) y la hacen avanzar un número fijo de ticks con la
+// semilla y la entrada guionizada de los fotogramas de referencia, de manera que
+// dos ejecuciones del mismo escenario simulan exactamente lo mismo.
+//
+// De cada tick se mide el tiempo de simulación, el de grabar y rasterizar el
+// fotograma, y los bytes reservados por el hilo. El pavo no muere: al principio de
+// cada tick se le devuelve la vida, para que la carga se mantenga todo el escenario.
+//
+// Los resultados se escriben en stress/: un CSV por escenario con una fila por tick
+// y stress/summary.csv con los percentiles de cada uno.
+//
+// Se lanza con el argumento --stress para todos los escenarios, o --stress=nombre
+// para uno solo. En Linux sin pantalla: xvfb-run ./Main --stress
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+// Ticks que dura cada escenario, medio minuto de juego
+final static int STRESS_TICKS = 1800;
+// Ticks de calentamiento antes de medir, para que el JIT no cuente en los resultados
+final static int STRESS_WARMUP = 300;
+// Velocidad del terreno del escenario de velocidad máxima: tres cerillas por tick
+final static float STRESS_MAX_SPEED = 45;
+// Ancho del mundo del escenario 4K
+final static int STRESS_WIDE_WIDTH = 3840;
+// Ancho del mundo de una instalación de varios monitores, por encima del umbral de la actualización en paralelo
+final static int STRESS_ULTRAWIDE_WIDTH = 7680;
+
+/*
+  Configuración de un escenario de carga
+ */
+class StressScenario {
+  String name;
+  // Ancho del mundo
+  int width = SCREEN_WIDTH;
+  // Probabilidades de la generación del mundo, como en GameStage
+  float itemChance = 5;
+  float enemyChance = 1;
+  float ignitionChance = 1;
+  // Velocidad fija del terreno, o 0 para la normal
+  float speed = 0;
+  // Al principio de cada tick se prenden todas las cerillas que tienen cabeza
+  boolean allBurning;
+
+  StressScenario(String name) {
+    this.name = name;
+  }
+
+  // Aplica la configuración a una partida recién creada
+  void configure(GameStage game) {
+    game.itemChance = itemChance;
+    game.enemyChance = enemyChance;
+    game.ignitionChance = ignitionChance;
+    game.fixedSpeed = speed;
+  }
+
+  // Fuerza el peor caso antes de cada tick
+  void prepareTick(GameStage game) {
+    game.lifePoints = GameStage.INITIAL_LIFE_POINTS;
+    game.pendingLifePoints = 0;
+    game.dead = false;
+    if (allBurning) {
+      MatchStore matches = game.matches;
+      for (int c=0; c<matches.count; c++) {
+        if (matches.noFire[c]) continue;
+        matches.intensity[c] = MatchStore.MAX_INTENSITY;
+        matches.used[c] = true;
+      }
+    }
+  }
+}
+
+// Construye la lista de escenarios
+List<StressScenario> createStressScenarios() {
+  List<StressScenario> scenarios = new ArrayList<StressScenario>();
+  scenarios.add(new StressScenario("baseline"));
+
+  StressScenario burning = new StressScenario("burning");
+  burning.allBurning = true;
+  scenarios.add(burning);
+
+  StressScenario enemies = new StressScenario("enemies");
+  enemies.enemyChance = 100;
+  scenarios.add(enemies);
+
+  StressScenario items = new StressScenario("items");
+  items.itemChance = 100;
+  scenarios.add(items);
+
+  StressScenario speed = new StressScenario("speed");
+  speed.speed = STRESS_MAX_SPEED;
+  scenarios.add(speed);
+
+  StressScenario wide = new StressScenario("wide");
+  wide.width = STRESS_WIDE_WIDTH;
+  scenarios.add(wide);
+
+  StressScenario ultrawide = new StressScenario("ultrawide");
+  ultrawide.width = STRESS_ULTRAWIDE_WIDTH;
+  scenarios.add(ultrawide);
+
+  // Todos los peores casos a la vez
+  StressScenario all = new StressScenario("all");
+  all.width = STRESS_WIDE_WIDTH;
+  all.enemyChance = 100;
+  all.itemChance = 100;
+  all.speed = STRESS_MAX_SPEED;
+  all.allBurning = true;
+  scenarios.add(all);
+  return scenarios;
+}
+
+/*
+  Mediciones de un escenario, una posición por tick medido
+ */
+class StressResult {
+  StressScenario scenario;
+  long[] updateNanos, renderNanos, allocated;
+  int[] matchCount, entityCount;
+  // Recolecciones de basura durante el escenario y milisegundos que han costado
+  long gcCount, gcMillis;
+
+  StressResult(StressScenario scenario, int ticks) {
+    this.scenario = scenario;
+    updateNanos = new long[ticks];
+    renderNanos = new long[ticks];
+    allocated = new long[ticks];
+    matchCount = new int[ticks];
+    entityCount = new int[ticks];
+  }
+}
+
+// Ejecuta el escenario y devuelve sus mediciones
+StressResult runStressScenario(StressScenario scenario) {
+  GameStage game = beginScriptedGame(scenario.width);
+  scenario.configure(game);
+  PGraphics target = createGraphics(scenario.width, SCREEN_HEIGHT);
+  DrawCommands commands = new DrawCommands();
+  TurkeyInput input = new TurkeyInput();
+  StressResult result = new StressResult(scenario, STRESS_TICKS);
+
+  long gcCount = 0, gcMillis = 0;
+  for (int t=-STRESS_WARMUP; t<STRESS_TICKS; t++) {
+    if (t == 0) {
+      gcCount = -getGcCount();
+      gcMillis = -getGcMillis();
+    }
+    scenario.prepareTick(game);
+    scriptInput(input, t + STRESS_WARMUP, scenario.width);
+
+    long allocStart = getAllocatedBytes();
+    long start = System.nanoTime();
+    game.step(GOLDEN_STEP, input);
+    long simulated = System.nanoTime();
+    commands.clear();
+    game.recordFrame(commands);
+    target.beginDraw();
+    game.rasterizer.rasterize(commands, game.sprites, target);
+    target.endDraw();
+    long rendered = System.nanoTime();
+    long allocEnd = getAllocatedBytes();
+
+    if (t < 0) continue;
+    result.updateNanos[t] = simulated - start;
+    result.renderNanos[t] = rendered - simulated;
+    result.allocated[t] = allocStart < 0 ? -1 : Math.max(0, allocEnd - allocStart - allocationProbeBytes);
+    result.matchCount[t] = game.matches.count;
+    result.entityCount[t] = game.entities.count;
+  }
+  result.gcCount = gcCount + getGcCount();
+  result.gcMillis = gcMillis + getGcMillis();
+  game.end();
+  return result;
+}
+
+// Ejecuta los escenarios cuyo nombre es 'only' (o todos si es null) y escribe los CSV.
+// Devuelve el número de escenarios ejecutados
+int runStressScenarios(String only) {
+  // Las mediciones no deben depender de la configuración local ni de ficheros guardados
+  useDeterministicConfig();
+  long probe = getAllocatedBytes();
+  allocationProbeBytes = Math.max(0, getAllocatedBytes() - probe);
+
+  Path dir = Paths.get(sketchPath("stress"));
+  List<String> summary = new ArrayList<String>();
+  summary.add("scenario,width,ticks,update_mean_us,update_p50_us,update_p95_us,update_p99_us,update_max_us,"
+    + "render_mean_us,render_p50_us,render_p95_us,render_p99_us,render_max_us,alloc_mean_bytes,alloc_max_bytes,"
+    + "matches_max,entities_max,gc_count,gc_ms");
+  int executed = 0;
+  try {
+    Files.createDirectories(dir);
+    for (StressScenario scenario : createStressScenarios()) {
+      if (only != null && !only.equals(scenario.name)) continue;
+      StressResult r = runStressScenario(scenario);
+      executed++;
+
+      List<String> rows = new ArrayList<String>(STRESS_TICKS + 1);
+      rows.add("tick,update_us,render_us,alloc_bytes,matches,entities");
+      long allocTotal = 0, allocMax = 0;
+      int matchesMax = 0, entitiesMax = 0;
+      for (int t=0; t<STRESS_TICKS; t++) {
+        rows.add(t + "," + micros(r.updateNanos[t]) + "," + micros(r.renderNanos[t]) + ","
+          + r.allocated[t] + "," + r.matchCount[t] + "," + r.entityCount[t]);
+        allocTotal += r.allocated[t];
+        allocMax = Math.max(allocMax, r.allocated[t]);
+        matchesMax = max(matchesMax, r.matchCount[t]);
+        entitiesMax = max(entitiesMax, r.entityCount[t]);
+      }
+      Files.write(dir.resolve(scenario.name + ".csv"), rows, StandardCharsets.UTF_8);
+
+      String update = stressPercentiles(r.updateNanos);
+      String render = stressPercentiles(r.renderNanos);
+      // Sin medición de memoria por hilo, las columnas de memoria quedan a -1
+      long allocMean = r.allocated[0] < 0 ? -1 : allocTotal / STRESS_TICKS;
+      summary.add(scenario.name + "," + scenario.width + "," + STRESS_TICKS + "," + update + "," + render + ","
+        + allocMean + "," + allocMax + "," + matchesMax + "," + entitiesMax + "," + r.gcCount + "," + r.gcMillis);
+      println(String.format("stress: %-10s update %s  render %s  alloc %d B/tick  gc %d (%d ms)",
+        scenario.name, update, render, allocMean, r.gcCount, r.gcMillis));
+    }
+    Files.write(dir.resolve("summary.csv"), summary, StandardCharsets.UTF_8);
+  }
+  catch (IOException e) {
+    println("stress: " + e.getMessage());
+  }
+  println("stress: " + executed + " scenarios written to " + dir);
+  return executed;
+}
+
+// Media, percentiles 50, 95 y 99 y máximo, en microsegundos y separados por comas
+String stressPercentiles(long[] nanos) {
+  long[] sorted = Arrays.copyOf(nanos, nanos.length);
+  Arrays.sort(sorted);
+  long total = 0;
+  for (long n : sorted) total += n;
+  int last = sorted.length - 1;
+  return micros(total / sorted.length) + "," + micros(sorted[last * 50 / 100]) + "," + micros(sorted[last * 95 / 100]) + ","
+    + micros(sorted[last * 99 / 100]) + "," + micros(sorted[last]);
+}
+
+// Nanosegundos en microsegundos con un decimal. El punto decimal no depende del idioma del sistema, es un CSV
+String micros(long nanos) {
+  return String.format(Locale.ROOT, "%.1f", nanos / 1000.0);
+}
+
+// Bytes que reserva la propia consulta de getAllocatedBytes(), que se descuentan de cada medición
+long allocationProbeBytes;
+
+// Bytes reservados hasta ahora por el hilo actual, o -1 si la máquina virtual no lo permite
+long getAllocatedBytes() {
+  java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+  // La medición por hilo es una extensión de HotSpot y OpenJ9, no del estándar
+  if (!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+  com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)threads;
+  if (!bean.isThreadAllocatedMemorySupported() || !bean.isThreadAllocatedMemoryEnabled()) return -1;
+  return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+}
+
+// Recolecciones de basura desde que arrancó la máquina virtual
+long getGcCount() {
+  long count = 0;
+  for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) count += Math.max(0, gc.getCollectionCount());
+  return count;
+}
+
+// Milisegundos dedicados a la recolección de basura desde que arrancó la máquina virtual
+long getGcMillis() {
+  long millis = 0;
+  for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) millis += Math.max(0, gc.getCollectionTime());
+  return millis;
+}
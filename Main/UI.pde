@@ -2,13 +2,14 @@
 // INTERFAZ DE USUARIO
 //
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 // Ancho de los botones
 private final static int BTN_IMAGE_WIDTH = 150;
 // Alto de los botones
 private final static int BTN_IMAGE_HEIGHT = 50;
-// Lista de imagenes asociadas a cada estado, por ID de botón
-private static final Map<String, List<PImage>> buttonImages = new HashMap<String, List<PImage>>();
+// Lista de imagenes asociadas a cada estado, por ID de botón. Las etapas pueden cargarlas desde el hilo de carga
+private static final Map<String, List<PImage>> buttonImages = new ConcurrentHashMap<String, List<PImage>>();
 // Lista de imagenes de fondo, por nombre
 private static final Map<String, PImage> backgroundImages = new HashMap<String,PImage>();
 
@@ -43,14 +44,299 @@ void loadButtonImages(String[] btnNames) {
   }
 }
 
-// Devuelve un botón con imágenes de fondo
-public static Button createImageButton(Object listener, ControlP5 control, String handler, String btn, int x, int y) {
-  // Localizamos las imagenes precargadas
-  List<PImage> images = buttonImages.get(btn);
-    
-    return control
-      .addButton(listener, handler)
-      .setImages(images.get(0), images.get(1), images.get(2))
-      .setSize(BTN_IMAGE_WIDTH, BTN_IMAGE_HEIGHT)
-      .setPosition(x, y);
+/*
+  Receptor de los eventos de una capa de interfaz. Cada control tiene asociado un
+  identificador de acción que se entrega al receptor junto con su valor, de modo
+  que la etapa atiende sus controles con un simple switch en lugar de localizar
+  los métodos por su nombre.
+ */
+interface UIListener {
+  // Se invoca al pulsar un botón o cambiar el valor de un control deslizante
+  void onUIEvent(int action, float value);
+}
+
+/*
+  Capa de interfaz en modo inmediato. Los controles se guardan en una tabla de
+  rectángulos (arrays paralelos) sobre la que se comprueba la posición del ratón,
+  leída del InputHandler compartido. La capa se construye una sola vez y se
+  reutiliza, vinculándola a la etapa que la usa en cada momento; mientras está
+  desactivada ni se actualiza ni se pinta.
+ */
+class UILayer {
+  // Tipos de control
+  final static int BUTTON = 0;
+  final static int LABEL = 1;
+  final static int SLIDER = 2;
+  // Imágenes de cada estado de un botón
+  final static int STATE_NORMAL = 0;
+  final static int STATE_OVER = 1;
+  final static int STATE_HIGHLIGHT = 2;
+  // Colores de los controles deslizantes
+  final int SLIDER_FOREGROUND = color(190, 34, 0);
+  final int SLIDER_BACKGROUND = color(0, 0, 0, 100);
+  final int SLIDER_ACTIVE = color(254, 180, 38);
+  final int SLIDER_LABEL = color(255, 255, 255);
+
+  // Número de controles
+  int count;
+  // Tipo y acción de cada control
+  int[] type, action;
+  // Rectángulo de cada control
+  int[] x, y, w, h;
+  // Valor y rango de los controles deslizantes
+  float[] value, min, max;
+  // Imágenes de los botones, por estado
+  PImage[][] images;
+  // Texto y fuente de etiquetas y controles deslizantes
+  String[] text;
+  PFont[] font;
+  // Control con el ratón encima, -1 si no hay ninguno
+  int hover;
+  // Control pulsado que aún no se ha soltado, -1 si no hay ninguno
+  int pressed;
+  // Objeto que recibe los eventos
+  UIListener owner;
+  // Indica si la capa está activa
+  boolean active;
+  // Indica si el aspecto de la capa ha cambiado desde la última vez que se pintó
+  boolean dirty;
+
+  // Constructor, la capa se crea vacía y desactivada
+  UILayer() {
+    count = 0;
+    type = new int[8];
+    action = new int[8];
+    x = new int[8];
+    y = new int[8];
+    w = new int[8];
+    h = new int[8];
+    value = new float[8];
+    min = new float[8];
+    max = new float[8];
+    images = new PImage[8][];
+    text = new String[8];
+    font = new PFont[8];
+    hover = -1;
+    pressed = -1;
+    active = false;
+    dirty = false;
+  }
+
+  // Indica si aún no se ha añadido ningún control a la capa
+  boolean isEmpty() {
+    return count == 0;
+  }
+
+  // Reserva una fila en la tabla de controles y devuelve su índice
+  private int add(int controlType, int controlAction, int cx, int cy, int cw, int ch) {
+    if (count == type.length) {
+      int capacity = count * 2;
+      type = Arrays.copyOf(type, capacity);
+      action = Arrays.copyOf(action, capacity);
+      x = Arrays.copyOf(x, capacity);
+      y = Arrays.copyOf(y, capacity);
+      w = Arrays.copyOf(w, capacity);
+      h = Arrays.copyOf(h, capacity);
+      value = Arrays.copyOf(value, capacity);
+      min = Arrays.copyOf(min, capacity);
+      max = Arrays.copyOf(max, capacity);
+      images = Arrays.copyOf(images, capacity);
+      text = Arrays.copyOf(text, capacity);
+      font = Arrays.copyOf(font, capacity);
+    }
+    int c = count++;
+    type[c] = controlType;
+    action[c] = controlAction;
+    x[c] = cx;
+    y[c] = cy;
+    w[c] = cw;
+    h[c] = ch;
+    return c;
+  }
+
+  // Añade un botón con las imágenes precargadas de 'btn' que emite 'controlAction' al pulsarlo
+  int addImageButton(int controlAction, String btn, int bx, int by) {
+    int c = add(BUTTON, controlAction, bx, by, BTN_IMAGE_WIDTH, BTN_IMAGE_HEIGHT);
+    List<PImage> btnImages = buttonImages.get(btn);
+    images[c] = new PImage[]{btnImages.get(STATE_NORMAL), btnImages.get(STATE_OVER), btnImages.get(STATE_HIGHLIGHT)};
+    return c;
+  }
+
+  // Añade una etiqueta de texto
+  int addLabel(String label, PFont labelFont, int lx, int ly) {
+    int c = add(LABEL, -1, lx, ly, 0, 0);
+    text[c] = label;
+    font[c] = labelFont;
+    return c;
+  }
+
+  // Añade un control deslizante entre 'from' y 'to' que emite 'controlAction' al cambiar su valor
+  int addSlider(int controlAction, String label, PFont labelFont, int sx, int sy, int sw, int sh, float from, float to, float initial) {
+    int c = add(SLIDER, controlAction, sx, sy, sw, sh);
+    text[c] = label;
+    font[c] = labelFont;
+    min[c] = from;
+    max[c] = to;
+    value[c] = initial;
+    return c;
+  }
+
+  // Cambia el objeto que recibe los eventos de los controles
+  void bind(UIListener newOwner) {
+    owner = newOwner;
+  }
+
+  // Muestra la capa y activa sus eventos
+  void attach() {
+    active = true;
+    dirty = true;
+  }
+
+  // Oculta la capa y desactiva sus eventos
+  void detach() {
+    if (active) dirty = true;
+    active = false;
+    // Olvidamos el estado del ratón para que no quede un control marcado al volver
+    hover = -1;
+    pressed = -1;
+  }
+
+  // Devuelve el control con el ratón encima, o -1 si no hay ninguno
+  int getHover() {
+    return hover;
+  }
+
+  // Devuelve el índice del control (botón o deslizante) que contiene el punto, o -1
+  private int hitTest(int px, int py) {
+    for (int c=0; c<count; c++) {
+      if (type[c] != LABEL && px >= x[c] && px < x[c] + w[c] && py >= y[c] && py < y[c] + h[c]) {
+        return c;
+      }
+    }
+    return -1;
+  }
+
+  // Procesa la entrada del fotograma y entrega los eventos al propietario
+  void update(InputHandler input) {
+    if (!active) return;
+    Vector mouse = input.getMousePosition();
+    int mx = mouse.x, my = mouse.y;
+    int buttonState = input.getMouseButtonState(InputHandler.MOUSE_LEFT);
+
+    int lastHover = hover, lastPressed = pressed;
+    hover = hitTest(mx, my);
+    if (buttonState == InputHandler.MOUSE_PRESSED) {
+      pressed = hover;
+    }
+
+    // Mientras se arrastra un control deslizante, su valor sigue al ratón
+    if (pressed >= 0 && type[pressed] == SLIDER && (buttonState == InputHandler.MOUSE_PRESSED || buttonState == InputHandler.MOUSE_RELEASED || input.isMouseMoving())) {
+      int c = pressed;
+      float v = constrain(map(mx, x[c], x[c] + w[c], min[c], max[c]), min[c], max[c]);
+      if (v != value[c]) {
+        value[c] = v;
+        dirty = true;
+        if (owner != null) owner.onUIEvent(action[c], v);
+      }
+    }
+
+    if (buttonState == InputHandler.MOUSE_RELEASED) {
+      // Un botón se activa al soltarlo sobre él, si la pulsación también empezó encima
+      // (o ocurrió en este mismo fotograma y no llegamos a verla)
+      int c = hover;
+      boolean click = c >= 0 && type[c] == BUTTON && (pressed == c || pressed < 0);
+      pressed = -1;
+      if (click && owner != null) owner.onUIEvent(action[c], value[c]);
+    }
+    if (hover != lastHover || pressed != lastPressed) dirty = true;
+  }
+
+  // Pinta los controles de la capa
+  void draw(PGraphics g) {
+    dirty = false;
+    if (!active) return;
+    for (int c=0; c<count; c++) {
+      switch (type[c]) {
+      case BUTTON:
+        int state = c == pressed ? STATE_HIGHLIGHT : c == hover ? STATE_OVER : STATE_NORMAL;
+        g.image(images[c][state], x[c], y[c]);
+        break;
+      case LABEL:
+        g.fill(SLIDER_LABEL);
+        g.textFont(font[c]);
+        g.textAlign(LEFT, TOP);
+        g.text(text[c], x[c], y[c]);
+        break;
+      case SLIDER:
+        g.noStroke();
+        g.fill(SLIDER_BACKGROUND);
+        g.rect(x[c], y[c], w[c], h[c]);
+        g.fill(c == hover || c == pressed ? SLIDER_ACTIVE : SLIDER_FOREGROUND);
+        g.rect(x[c], y[c], w[c] * (value[c] - min[c]) / (max[c] - min[c]), h[c]);
+        g.fill(SLIDER_LABEL);
+        g.textFont(font[c]);
+        g.textAlign(LEFT, CENTER);
+        g.text(round(value[c]), x[c] + 5, y[c] + h[c] / 2);
+        g.text(text[c], x[c] + w[c] + 5, y[c] + h[c] / 2);
+        break;
+      }
+    }
+  }
+}
+
+/*
+  Gestor de las capas de interfaz. Cada capa se identifica por un nombre y se
+  crea la primera vez que se solicita; las siguientes veces se devuelve la misma
+  instancia, ya construida, vinculada al nuevo propietario.
+ */
+class UIManager {
+  // Capas creadas, por nombre
+  Map<String, UILayer> layers;
+  // Capas activas al empezar a procesar la entrada del fotograma
+  List<UILayer> updating;
+
+  // Constructor
+  UIManager() {
+    this.layers = new HashMap<String, UILayer>();
+    this.updating = new ArrayList<UILayer>();
+  }
+
+  // Devuelve la capa 'name' vinculada a 'owner', creándola si no existía.
+  // La capa se entrega desactivada, hay que llamar a attach() para mostrarla
+  UILayer acquire(String name, UIListener owner) {
+    UILayer layer = layers.get(name);
+    if (layer == null) {
+      layer = new UILayer();
+      layers.put(name, layer);
+    }
+    layer.bind(owner);
+    return layer;
+  }
+
+  // Procesa la entrada en todas las capas activas
+  void update(InputHandler input) {
+    // Un evento puede activar otra capa; esta no debe recibir el mismo click
+    updating.clear();
+    for (UILayer layer : layers.values()) {
+      if (layer.active) updating.add(layer);
+    }
+    for (UILayer layer : updating) {
+      layer.update(input);
+    }
+  }
+
+  // Indica si alguna capa ha cambiado y hay que volver a pintarlas
+  boolean isDirty() {
+    for (UILayer layer : layers.values()) {
+      if (layer.dirty) return true;
+    }
+    return false;
+  }
+
+  // Pinta todas las capas activas
+  void draw(PGraphics g) {
+    for (UILayer layer : layers.values()) {
+      layer.draw(g);
+    }
+  }
 }
@@ -0,0 +1,229 @@
+//
+// PARTIDA A DOS JUGADORES
+//
+// Dos jugadores corren sobre el mismo mundo, generado con la misma semilla. Cada
+// uno simula su partida con su propia entrada y, además, una copia sin cabeza de
+// la partida del rival, que avanza con la entrada que llega por un socket TCP.
+//
+// La copia del rival no espera a la red: cuando falta la entrada de un tick se
+// predice (el ratón sigue donde estaba y el botón no cambia) y se simula igual.
+// Cuando llega la entrada real de un tick ya simulado y no coincide con la
+// predicción, se restaura la instantánea de antes de ese tick y se vuelve a
+// simular hasta el presente. Las instantáneas son StateBuffer, así que restaurar
+// cuesta microsegundos y el coste de corregir es el de repetir los ticks.
+//
+// Protocolo: al conectar, el anfitrión envía la magia y la semilla del mundo.
+// Después cada lado envía un mensaje de tamaño fijo por tick:
+//
+//   int   tick
+//   short milisegundos del tick
+//   short x del ratón
+//   byte  estado del botón
+//
+// TCP entrega los mensajes en orden, así que si ha llegado el tick n han llegado
+// todos los anteriores.
+
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+// Modos de la partida a dos
+final static int VERSUS_OFF = 0;
+final static int VERSUS_HOST = 1;
+final static int VERSUS_JOIN = 2;
+// Identificador del saludo inicial
+final static int VERSUS_MAGIC = 0x56525355;
+// Tamaño de un mensaje de entrada
+final static int VERSUS_MESSAGE_SIZE = 9;
+// Ticks que el rival puede ir por delante de su última entrada confirmada. Es también
+// el número de ticks que, como mucho, hay que volver a simular al corregir
+final static int ROLLBACK_WINDOW = 16;
+// Entradas del rival que se guardan por delante de su simulación
+final static int VERSUS_INPUT_RING = 256;
+
+/*
+  Conexión con el otro jugador y simulación del rival con rollback
+ */
+class VersusSession {
+  SocketChannel channel;
+  // Buffers de envío y recepción, reservados al conectar
+  ByteBuffer outgoing, incoming;
+  // Semilla del mundo, la decide el anfitrión
+  long seed;
+  // Partida del rival
+  GameStage rival;
+  // Se cierra si el otro jugador se desconecta
+  boolean closed;
+
+  // Ticks locales simulados
+  int localTick;
+  // Ticks simulados del rival
+  int rivalTick;
+  // Entradas reales recibidas: los ticks [0, received) están confirmados
+  int received;
+  // Tick desde el que hay que volver a simular, o -1 si la predicción ha acertado
+  int rollbackFrom = -1;
+  // Ticks vueltos a simular en total, para las estadísticas
+  int resimulated;
+
+  // Entradas del rival por tick (real o predicha) y duración de cada tick, indexadas por tick % VERSUS_INPUT_RING
+  int[] inputX = new int[VERSUS_INPUT_RING];
+  int[] inputButton = new int[VERSUS_INPUT_RING];
+  int[] inputDelta = new int[VERSUS_INPUT_RING];
+  // Duración de los ticks locales, que se usa como predicción de la del rival
+  int[] localDelta = new int[VERSUS_INPUT_RING];
+  // Estado del rival antes de simular cada tick, indexado por tick % ROLLBACK_WINDOW
+  StateBuffer[] states = new StateBuffer[ROLLBACK_WINDOW];
+  // Entrada con la que se simula cada tick del rival
+  TurkeyInput input = new TurkeyInput();
+
+  // Conecta con el otro jugador y prepara la partida del rival. Bloquea hasta 'timeout' milisegundos
+  VersusSession(GameStage local, int mode, String host, int port, int timeout) throws IOException {
+    outgoing = ByteBuffer.allocateDirect(VERSUS_MESSAGE_SIZE * VERSUS_INPUT_RING);
+    incoming = ByteBuffer.allocateDirect(VERSUS_MESSAGE_SIZE * VERSUS_INPUT_RING);
+    if (mode == VERSUS_HOST) {
+      seed = local.seed;
+      ServerSocketChannel server = ServerSocketChannel.open();
+      try {
+        server.socket().setReuseAddress(true);
+        server.socket().bind(new InetSocketAddress(port));
+        server.socket().setSoTimeout(timeout);
+        channel = server.socket().accept().getChannel();
+      }
+      finally {
+        server.close();
+      }
+      outgoing.putInt(VERSUS_MAGIC).putLong(seed);
+      outgoing.flip();
+      while (outgoing.hasRemaining()) channel.write(outgoing);
+      outgoing.clear();
+      channel.configureBlocking(false);
+    } else {
+      channel = SocketChannel.open();
+      channel.socket().connect(new InetSocketAddress(host, port), timeout);
+      channel.configureBlocking(false);
+      // Esperamos el saludo con la semilla
+      long deadline = System.currentTimeMillis() + timeout;
+      while (incoming.position() < 12) {
+        if (channel.read(incoming) < 0 || System.currentTimeMillis() > deadline) {
+          channel.close();
+          throw new IOException("no greeting from " + host + ":" + port);
+        }
+        Thread.yield();
+      }
+      incoming.flip();
+      if (incoming.getInt() != VERSUS_MAGIC) {
+        channel.close();
+        throw new IOException("unexpected greeting from " + host + ":" + port);
+      }
+      seed = incoming.getLong();
+      incoming.compact();
+    }
+    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+    for (int i=0; i<ROLLBACK_WINDOW; i++) states[i] = new StateBuffer(4096);
+    rival = new GameStage(local.applet);
+    rival.setSize(local.width, local.height);
+    rival.beginHeadless(seed);
+    // Hasta que llegue su primera entrada, suponemos que el rival sigue donde empieza el pavo
+    inputX[0] = local.width/2;
+  }
+
+  // Se invoca una vez por tick local: envía la entrada local, recoge la del rival y
+  // simula al rival hasta el tick local, corrigiendo si alguna predicción ha fallado
+  void update(long delta, TurkeyInput local) {
+    if (closed) return;
+    try {
+      send(localTick, (int)delta, local);
+      localDelta[localTick % VERSUS_INPUT_RING] = (int)delta;
+      localTick++;
+      receive();
+    }
+    catch (IOException e) {
+      println("versus: " + e.getMessage());
+      close();
+    }
+    rollback();
+    advance(localTick);
+  }
+
+  // Encola el mensaje de un tick y envía lo que admita el socket sin bloquear. Si el
+  // otro lado no lee, los mensajes se acumulan hasta llenar el buffer y se abandona la partida
+  void send(int tick, int delta, TurkeyInput local) throws IOException {
+    if (outgoing.remaining() < VERSUS_MESSAGE_SIZE) throw new IOException("peer is not reading");
+    outgoing.putInt(tick).putShort((short)delta).putShort((short)local.x).put((byte)local.button);
+    outgoing.flip();
+    channel.write(outgoing);
+    outgoing.compact();
+  }
+
+  // Lee las entradas del rival que hayan llegado
+  void receive() throws IOException {
+    if (channel.read(incoming) < 0) throw new IOException("peer disconnected");
+    incoming.flip();
+    // No leemos entradas que no quepan en el anillo; se quedan en el buffer hasta que el rival avance
+    while (incoming.remaining() >= VERSUS_MESSAGE_SIZE && received - rivalTick < VERSUS_INPUT_RING - 1) {
+      int tick = incoming.getInt();
+      int delta = incoming.getShort();
+      int x = incoming.getShort();
+      int button = incoming.get();
+      if (tick != received) throw new IOException("out of sequence tick " + tick);
+      int slot = tick % VERSUS_INPUT_RING;
+      // Si ya se había simulado con una predicción distinta, hay que corregir desde aquí
+      if (tick < rivalTick && (inputX[slot] != x || inputButton[slot] != button || inputDelta[slot] != delta)) {
+        if (rollbackFrom < 0 || tick < rollbackFrom) rollbackFrom = tick;
+      }
+      inputX[slot] = x;
+      inputButton[slot] = button;
+      inputDelta[slot] = delta;
+      received++;
+    }
+    incoming.compact();
+  }
+
+  // Si alguna predicción ha fallado, restaura el estado del rival de antes de ese tick
+  void rollback() {
+    if (rollbackFrom < 0) return;
+    StateBuffer state = states[rollbackFrom % ROLLBACK_WINDOW];
+    state.rewind();
+    rival.restoreTimeElapsed(state.getLong());
+    rival.loadState(state);
+    resimulated += rivalTick - rollbackFrom;
+    rivalTick = rollbackFrom;
+    rollbackFrom = -1;
+  }
+
+  // Simula al rival hasta 'target', sin alejarse más de ROLLBACK_WINDOW ticks de su última
+  // entrada confirmada para poder corregir siempre. Si se queda atrás, espera a la red
+  void advance(int target) {
+    while (rivalTick < target && rivalTick < received + ROLLBACK_WINDOW) {
+      int slot = rivalTick % VERSUS_INPUT_RING;
+      if (rivalTick >= received) {
+        // Predicción: el ratón sigue donde estaba, el botón no cambia y el tick dura como el local
+        inputX[slot] = rivalTick > 0 ? inputX[(rivalTick - 1) % VERSUS_INPUT_RING] : inputX[slot];
+        inputButton[slot] = 0;
+        inputDelta[slot] = localDelta[slot];
+      }
+      // Guardamos el estado de antes del tick para poder volver a él
+      StateBuffer state = states[rivalTick % ROLLBACK_WINDOW];
+      state.clear();
+      state.putLong(rival.getTimeElapsed());
+      rival.saveState(state);
+
+      input.set(inputX[slot], inputButton[slot]);
+      rival.step(inputDelta[slot], input);
+      rivalTick++;
+    }
+  }
+
+  void close() {
+    closed = true;
+    try {
+      channel.close();
+    }
+    catch (IOException e) {
+      println("versus: " + e.getMessage());
+    }
+  }
+}